@@ -45,6 +45,7 @@ import org.apache.logging.log4j.Logger;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
+import org.eclipse.lsp4j.InitializedParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.SetTraceParams;
 import org.eclipse.lsp4j.WorkspaceFolder;
@@ -289,6 +290,11 @@ public abstract class BaseLanguageServer {
             return CompletableFuture.completedFuture(initializeResult);
         }
 
+        @Override
+        public void initialized(InitializedParams params) {
+            lspWorkspaceService.initialized();
+        }
+
         @Override
         public CompletableFuture<Object> shutdown() {
             lspDocumentService.shutdown();
@@ -75,6 +75,10 @@ public class BaseWorkspaceService implements WorkspaceService, LanguageClientAwa
 
     }
 
+    public void initialized() {
+        documentService.workspaceFoldersAdded(workspaceFolders());
+    }
+
     public List<WorkspaceFolder> workspaceFolders() {
         return Collections.unmodifiableList(workspaceFolders);
     }
@@ -99,10 +103,12 @@ public class BaseWorkspaceService implements WorkspaceService, LanguageClientAwa
         var removed = params.getEvent().getRemoved();
         if (removed != null) {
             workspaceFolders.removeAll(removed);
+            documentService.workspaceFoldersRemoved(removed);
         }
         var added = params.getEvent().getAdded();
         if (added != null) {
             workspaceFolders.addAll(added);
+            documentService.workspaceFoldersAdded(added);
         }
     }
 
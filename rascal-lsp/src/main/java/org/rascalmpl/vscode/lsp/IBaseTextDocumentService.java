@@ -26,8 +26,10 @@
  */
 package org.rascalmpl.vscode.lsp;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import org.eclipse.lsp4j.ServerCapabilities;
+import org.eclipse.lsp4j.WorkspaceFolder;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.TextDocumentService;
 import org.rascalmpl.vscode.lsp.terminal.ITerminalIDEServer.LanguageParameter;
@@ -44,4 +46,15 @@ public interface IBaseTextDocumentService extends TextDocumentService {
     void unregisterLanguage(LanguageParameter lang);
     CompletableFuture<IValue> executeCommand(String extension, String command);
     LineColumnOffsetMap getColumnMap(ISourceLocation file);
+
+    /**
+     * Called once the connection is initialized, and for every workspace folder that is added later on.
+     */
+    default void workspaceFoldersAdded(List<WorkspaceFolder> folders) {
+        // most services have nothing to do here
+    }
+
+    default void workspaceFoldersRemoved(List<WorkspaceFolder> folders) {
+        // most services have nothing to do here
+    }
 }
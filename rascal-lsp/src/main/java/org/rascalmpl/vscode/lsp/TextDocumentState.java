@@ -26,56 +26,219 @@
  */
 package org.rascalmpl.vscode.lsp;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode;
 import org.rascalmpl.values.parsetrees.ITree;
+import org.rascalmpl.vscode.lsp.util.PieceTable;
 
 import io.usethesource.vallang.ISourceLocation;
 
 /**
  * TextDocumentState encapsulates the current contents of every open file editor, 
  * and the corresponding latest parse tree that belongs to it.
+ * The contents are kept in a {@link PieceTable}, such that incremental changes
+ * from the client do not copy the whole file; a string is only materialized
+ * when the parser (or anyone else) asks for the current contents.
  * It is parametrized by the parser that must be used to map the string
  * contents to a tree. All other TextDocumentServices depend on this information. 
+ *
+ * Updates are not parsed right away: a parse is scheduled after a quiet period,
+ * and if newer contents arrive in the mean time, the older parse is skipped.
+ * All futures handed out while a burst of updates is pending complete with
+ * the tree of the newest contents.
+ *
+ * Next to the contents, we track the LSP version of the document, and the version
+ * that the most recent parse belongs to, such that work for an older version
+ * can be dropped before it reaches the (expensive) evaluators.
  * 
  * Objects of this class are used by the implementations of RascalTextDocumentService
  * and ParametricTextDocumentService. 
  */
 public class TextDocumentState {
+    /** milliseconds to wait for more changes before we start parsing */
+    public static final long DEFAULT_QUIET_PERIOD = Long.getLong("rascal.lsp.parse.quietPeriod", 50);
+
     private final BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser;
+    private final @Nullable IncrementalParser reparser;
+    private final Executor delayedParse;
 
     private final ISourceLocation file;
-    private volatile String currentContent;
+    private final PieceTable currentContent;
     @SuppressWarnings("java:S3077") // we are use volatile correctly
     private volatile @MonotonicNonNull ITree lastFullTree;
     @SuppressWarnings("java:S3077") // we are use volatile correctly
+    private volatile @MonotonicNonNull String lastFullTreeContents;
+    @SuppressWarnings("java:S3077") // we are use volatile correctly
     private volatile CompletableFuture<ITree> currentTree;
+    private volatile int currentVersion;
+    private volatile int parsedVersion = -1;
+
+    // guarded by this
+    private long revision = 0;
+    private long lastFullTreeRevision = -1;
+    private @Nullable CompletableFuture<ITree> pendingTree = null;
+
+    /**
+     * A parser that can reuse the tree of earlier contents, it should fallback to a full parse
+     * if it cannot reuse the earlier tree.
+     */
+    @FunctionalInterface
+    public interface IncrementalParser {
+        CompletableFuture<ITree> reparse(ISourceLocation file, String previousContents, ITree previousTree, String newContents);
+    }
+
+    public TextDocumentState(BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser, ISourceLocation file, int version, String content) {
+        this(parser, null, file, version, content, DEFAULT_QUIET_PERIOD);
+    }
+
+    public TextDocumentState(BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser, @Nullable IncrementalParser reparser, ISourceLocation file, int version, String content) {
+        this(parser, reparser, file, version, content, DEFAULT_QUIET_PERIOD);
+    }
+
+    public TextDocumentState(BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser, @Nullable IncrementalParser reparser, ISourceLocation file, int version, String content, long quietPeriodMillis) {
+        this(parser, reparser, file, version, content, quietPeriodMillis > 0
+            ? CompletableFuture.delayedExecutor(quietPeriodMillis, TimeUnit.MILLISECONDS)
+            : Runnable::run);
+    }
 
-    public TextDocumentState(BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser, ISourceLocation file, String content) {
+    /**
+     * @param delayedParse runs the scheduled parses after the quiet period
+     */
+    public TextDocumentState(BiFunction<ISourceLocation, String, CompletableFuture<ITree>> parser, @Nullable IncrementalParser reparser, ISourceLocation file, int version, String content, Executor delayedParse) {
         this.parser = parser;
+        this.reparser = reparser;
         this.file = file;
-        this.currentContent = content;
-        currentTree = newContents(content);
+        this.currentVersion = version;
+        this.currentContent = new PieceTable(content);
+        this.delayedParse = delayedParse;
+        // the first version is parsed right away, since the editor was just opened
+        currentTree = newContents(version, content);
     }
 
-    public CompletableFuture<ITree> update(String text) {
-        currentContent = text;
-        currentTree = newContents(text);
-        return currentTree;
+    /**
+     * Replace the contents, and schedule a parse.
+     * @return a future that completes with the tree of the newest contents (might be shared with earlier updates)
+     */
+    public synchronized CompletableFuture<ITree> update(int version, String text) {
+        currentVersion = version;
+        currentContent.reset(text);
+        return scheduleParse();
+    }
+
+    /**
+     * Apply the changes in order, either a full replacement (no range), or a ranged edit, and schedule a parse.
+     * @return a future that completes with the tree of the newest contents (might be shared with earlier updates)
+     */
+    public synchronized CompletableFuture<ITree> update(int version, List<TextDocumentContentChangeEvent> changes) {
+        currentVersion = version;
+        for (TextDocumentContentChangeEvent change : changes) {
+            Range range = change.getRange();
+            if (range == null) {
+                currentContent.reset(change.getText());
+            }
+            else {
+                currentContent.replace(
+                    range.getStart().getLine(), range.getStart().getCharacter(),
+                    range.getEnd().getLine(), range.getEnd().getCharacter(),
+                    change.getText());
+            }
+        }
+        return scheduleParse();
+    }
+
+    // should only be called while holding the lock on this
+    private CompletableFuture<ITree> scheduleParse() {
+        long scheduledRevision = ++revision;
+        CompletableFuture<ITree> target = pendingTree;
+        if (target == null) {
+            target = new CompletableFuture<>();
+            pendingTree = target;
+            currentTree = target;
+        }
+        final CompletableFuture<ITree> result = target;
+        delayedParse.execute(() -> parseIfLatest(scheduledRevision, result));
+        return result;
     }
 
     @SuppressWarnings("java:S1181") // we want to catch all Java exceptions from the parser
-    private CompletableFuture<ITree> newContents(String contents) {
+    private void parseIfLatest(long scheduledRevision, CompletableFuture<ITree> target) {
+        String contents;
+        int version;
+        ITree previousTree;
+        String previousContents;
+        synchronized (this) {
+            if (scheduledRevision != revision) {
+                return; // a newer update came in during the quiet period, that one will do the parse
+            }
+            contents = currentContent.toString();
+            version = currentVersion;
+            previousTree = lastFullTree;
+            previousContents = lastFullTreeContents;
+        }
+        CompletableFuture<ITree> parsed;
+        try {
+            if (reparser != null && previousTree != null && previousContents != null) {
+                parsed = reparser.reparse(file, previousContents, previousTree, contents);
+            }
+            else {
+                parsed = parser.apply(file, contents);
+            }
+        }
+        catch (Throwable t) {
+            parsed = CompletableFuture.failedFuture(t);
+        }
+        parsed.whenComplete((r, t) -> {
+            synchronized (this) {
+                if (scheduledRevision != revision) {
+                    return; // superseded while parsing, the newer parse will complete the target
+                }
+                pendingTree = null;
+                parsedVersion = version;
+            }
+            if (r != null) {
+                recordTree(scheduledRevision, r, contents);
+                target.complete(r);
+            }
+            else {
+                target.completeExceptionally(t);
+            }
+        });
+    }
+
+    private CompletableFuture<ITree> newContents(int version, String contents) {
         return parser.apply(file, contents)
             .whenComplete((r, t) -> { 
+                synchronized (this) {
+                    if (revision == 0) {
+                        parsedVersion = version;
+                    }
+                }
                 if (r != null) { 
-                    lastFullTree = r; 
+                    recordTree(0, r, contents);
                 } 
             });
     }
 
+    private synchronized void recordTree(long treeRevision, ITree tree, String contents) {
+        // the initial parse could finish after a later one, so we never go back in time
+        if (treeRevision >= lastFullTreeRevision) {
+            lastFullTreeRevision = treeRevision;
+            lastFullTree = tree;
+            lastFullTreeContents = contents;
+        }
+    }
+
     public CompletableFuture<ITree> getCurrentTreeAsync() {
         return currentTree;
     }
@@ -84,11 +247,61 @@ public class TextDocumentState {
         return lastFullTree;
     }
 
+    /**
+     * @return the LSP version of the newest contents
+     */
+    public int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    /**
+     * @return the LSP version of the contents of the most recently completed parse, or -1 if nothing was parsed yet
+     */
+    public int getParsedVersion() {
+        return parsedVersion;
+    }
+
+    /**
+     * Check that no newer contents arrived since a request was made for the given version,
+     * to be called right before doing expensive work for the request.
+     * @return the value, if the document is still at the given version
+     * @throws ResponseErrorException with ContentModified, if the work has been superseded
+     */
+    public <T> T ensureVersion(int version, T value) {
+        if (version != currentVersion) {
+            throw new ResponseErrorException(new ResponseError(ResponseErrorCode.ContentModified,
+                "Document " + file + " changed from version " + version + " to " + currentVersion, null));
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the exception (or its cause) reports that the request was superseded by a newer version
+     */
+    public static boolean isContentModified(@Nullable Throwable e) {
+        while (e != null) {
+            if (e instanceof ResponseErrorException) {
+                return ((ResponseErrorException) e).getResponseError().getCode() == ResponseErrorCode.ContentModified.getValue();
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
     public ISourceLocation getLocation() {
         return file;
     }
 
-    public String getCurrentContent() {
-        return currentContent;
+    public synchronized String getCurrentContent() {
+        return currentContent.toString();
+    }
+
+    /**
+     * @return the current contents of the lines <code>[fromLine, toLine]</code> (including the newline of the last line)
+     */
+    public synchronized String getCurrentLines(int fromLine, int toLine) {
+        int start = currentContent.offsetOf(fromLine, 0);
+        int end = toLine == Integer.MAX_VALUE ? currentContent.length() : currentContent.offsetOf(toLine + 1, 0);
+        return currentContent.substring(start, Math.max(start, end));
     }
 }
\ No newline at end of file
@@ -65,4 +65,9 @@ public interface ILanguageContributions {
     public CompletableFuture<Boolean> askSummaryForDefinitions();
     public CompletableFuture<Boolean> askSummaryForReferences();
     public CompletableFuture<Boolean> askSummaryForImplementations();
+
+    /**
+     * These contributions are unregistered or replaced, release what they hold on to
+     */
+    public void close();
 }
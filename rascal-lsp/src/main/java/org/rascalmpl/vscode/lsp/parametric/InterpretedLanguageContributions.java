@@ -30,9 +30,12 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -53,7 +56,9 @@ import org.rascalmpl.vscode.lsp.IBaseTextDocumentService;
 import org.rascalmpl.vscode.lsp.parametric.model.ParametricSummaryBridge;
 import org.rascalmpl.vscode.lsp.terminal.ITerminalIDEServer.LanguageParameter;
 import org.rascalmpl.vscode.lsp.util.EvaluatorUtil;
+import org.rascalmpl.vscode.lsp.util.ParseTreeCache;
 import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
 
 import io.usethesource.vallang.IBool;
 import io.usethesource.vallang.IConstructor;
@@ -69,6 +74,16 @@ import io.usethesource.vallang.type.TypeStore;
 public class InterpretedLanguageContributions implements ILanguageContributions {
     private static final IValueFactory VF = IRascalValueFactory.getInstance();
     private static final Logger logger = LogManager.getLogger(InterpretedLanguageContributions.class);
+    /**
+     * Share evaluators between languages with the same path config (<code>-Drascal.lsp.dsl.sharedEvaluators=true</code>),
+     * such that their common modules are only loaded once.
+     *
+     * The price is latency: all their jobs then take turns on one evaluator, and a summary of one language
+     * ({@link JobPriority#BACKGROUND_CHECK}) is not preempted by the outline, lenses or inlay hints of another
+     * ({@link JobPriority#VISIBLE_DOCUMENT}), so those wait until it is done. Like the shared Rascal checker, this is off by default.
+     */
+    private static final boolean SHARED_EVALUATORS = Boolean.getBoolean("rascal.lsp.dsl.sharedEvaluators");
+    private static final Map<String, SharedEvaluator> sharedEvaluators = new ConcurrentHashMap<>();
 
     private final ExecutorService exec;
 
@@ -76,9 +91,13 @@ public class InterpretedLanguageContributions implements ILanguageContributions
     private final String extension;
     private final String mainModule;
 
+    private final @Nullable SharedEvaluator shared;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private final CompletableFuture<Evaluator> eval;
     private final CompletableFuture<TypeStore> store;
     private final CompletableFuture<IFunction> parser;
+    private final ParseTreeCache parseCache;
+    private final String parserIdentity;
     private final CompletableFuture<@Nullable IFunction> outliner;
     private final CompletableFuture<@Nullable IFunction> summarizer;
     private final CompletableFuture<@Nullable IFunction> lenses;
@@ -105,14 +124,24 @@ public class InterpretedLanguageContributions implements ILanguageContributions
     private final CompletableFuture<Boolean> summaryProvidesDocumentation;
 
 
-    private class MonitorWrapper implements IRascalMonitor {
+    private static class MonitorWrapper implements IRascalMonitor {
         private final IRascalMonitor original;
+        private final String languages;
         private final String namePrefix;
         private final ThreadLocal<Deque<String>> activeProgress = ThreadLocal.withInitial(ArrayDeque::new);
 
-        public MonitorWrapper(IRascalMonitor original, String namePrefix) {
-            this.original = original;
-            this.namePrefix = namePrefix + ": ";
+        public MonitorWrapper(IRascalMonitor original, String language) {
+            if (original instanceof MonitorWrapper) {
+                // a shared evaluator reports the progress of all the languages loaded into it
+                MonitorWrapper wrapped = (MonitorWrapper) original;
+                this.original = wrapped.original;
+                this.languages = wrapped.languages + ", " + language;
+            }
+            else {
+                this.original = original;
+                this.languages = language;
+            }
+            this.namePrefix = languages + ": ";
         }
 
         @Override
@@ -180,20 +209,23 @@ public class InterpretedLanguageContributions implements ILanguageContributions
         this.mainModule = lang.getMainModule();
         extension = lang.getExtension();
         this.exec = exec;
+        this.parseCache = new ParseTreeCache(name);
+        // a reloaded language gets a new contributions object, and thus a new parser identity
+        this.parserIdentity = ParseTreeCache.newParserIdentity(name);
 
         try {
             PathConfig pcfg = new PathConfig().parse(lang.getPathConfig());
 
-            this.eval =
-                EvaluatorUtil.makeFutureEvaluator(exec, docService, workspaceService, client, "evaluator for " + lang.getName(), pcfg, false, lang.getMainModule())
-                .thenApply(e -> {
-                    e.setMonitor(new MonitorWrapper(e.getMonitor(), lang.getName()));
-                    return e;
-                });
+            this.shared = SHARED_EVALUATORS ? sharedEvaluator(lang, pcfg, docService, workspaceService, client, exec) : null;
+            this.eval = shared != null
+                ? shared.loaded(lang.getMainModule())
+                : EvaluatorUtil.makeFutureEvaluator(exec, docService, workspaceService, client, "evaluator for " + lang.getName(), pcfg, false, lang.getMainModule())
+                    .thenApply(e -> withMonitorFor(e, lang.getName()));
+            // like the import, this must not interrupt the jobs of other languages on a shared evaluator
             var contributions = EvaluatorUtil.runEvaluator(name + ": loading contributions", eval,
                 e -> loadContributions(e, lang),
                 ValueFactoryFactory.getValueFactory().set(),
-                exec, true).get();
+                exec, true, JobPriority.VISIBLE_DOCUMENT).get();
             this.store = eval.thenApply(e -> ((ModuleEnvironment)e.getModule(mainModule)).getStore());
             this.parser = getFunctionFor(contributions, "parser");
             this.outliner = getFunctionFor(contributions, "outliner");
@@ -249,10 +281,92 @@ public class InterpretedLanguageContributions implements ILanguageContributions
     }
 
     private static ISet loadContributions(Evaluator eval, LanguageParameter lang) {
-        return (ISet) eval.eval(eval.getMonitor(), lang.getMainFunction() + "()", URIUtil.rootLocation("lsp"))
+        // in a shared evaluator, other languages might have a main function with the same name
+        String mainFunction = SHARED_EVALUATORS ? (lang.getMainModule() + "::" + lang.getMainFunction()) : lang.getMainFunction();
+        return (ISet) eval.eval(eval.getMonitor(), mainFunction + "()", URIUtil.rootLocation("lsp"))
             .getValue();
     }
 
+    /**
+     * Languages with the same path config share an evaluator, such that the modules they have in common
+     * (<code>util::LanguageServer</code>, <code>ParseTree</code>, the standard library, and often the grammar modules)
+     * are parsed and loaded once, and parsers generated for the same grammar are reused.
+     *
+     * Loading a language that is already loaded in the shared evaluator (a reload after changes to its modules)
+     * starts a fresh shared evaluator for that path config, as importing a module twice does not reload it.
+     * Languages that were loaded before keep using the evaluator they got.
+     */
+    private static SharedEvaluator sharedEvaluator(LanguageParameter lang, PathConfig pcfg, IBaseTextDocumentService docService,
+        BaseWorkspaceService workspaceService, IBaseLanguageClient client, ExecutorService exec) {
+        return sharedEvaluators.compute(lang.getPathConfig(), (k, current) -> {
+            if (current == null || current.mainModules.containsKey(lang.getMainModule())) {
+                SharedEvaluator fresh = new SharedEvaluator(k, EvaluatorUtil.makeFutureEvaluator(exec, docService, workspaceService, client,
+                    "shared evaluator for " + lang.getName(), pcfg, false, lang.getMainModule())
+                    .thenApply(e -> withMonitorFor(e, lang.getName())));
+                fresh.mainModules.put(lang.getMainModule(), fresh.eval);
+                fresh.users = 1;
+                return fresh;
+            }
+            logger.debug("Loading {} into the shared evaluator of {}", lang.getMainModule(), current.mainModules.keySet());
+            // the requests of the languages already loaded go first, but an import cannot be preempted halfway
+            current.mainModules.put(lang.getMainModule(), EvaluatorUtil.runEvaluator(lang.getName() + ": loading " + lang.getMainModule(), current.eval, e -> {
+                e.doImport(e.getMonitor(), lang.getMainModule());
+                // replaced inside the job, such that no other job of this evaluator sees the monitor change
+                return withMonitorFor(e, lang.getName());
+            }, null, exec, true, JobPriority.VISIBLE_DOCUMENT).get());
+            current.users++;
+            return current;
+        });
+    }
+
+    /**
+     * Drop the shared evaluator once the last language that uses it is closed.
+     * An evaluator that was already replaced by a fresh one (after a reload) is no longer in the map.
+     */
+    private static void release(SharedEvaluator shared) {
+        sharedEvaluators.computeIfPresent(shared.pathConfig, (k, current) -> {
+            if (current != shared || --current.users > 0) {
+                return current;
+            }
+            logger.debug("Dropping the shared evaluator of {}", current.mainModules.keySet());
+            return null;
+        });
+    }
+
+    /**
+     * Prefix the progress of the evaluator with the name of the language
+     */
+    private static Evaluator withMonitorFor(Evaluator e, String language) {
+        e.setMonitor(new MonitorWrapper(e.getMonitor(), language));
+        return e;
+    }
+
+    private static final class SharedEvaluator {
+        private final String pathConfig;
+        private final CompletableFuture<Evaluator> eval;
+        /** per main module, the evaluator once that module is imported */
+        private final Map<String, CompletableFuture<Evaluator>> mainModules = new ConcurrentHashMap<>();
+        /** languages that use this evaluator, only changed inside a compute on the shared evaluators map */
+        private int users = 0;
+
+        SharedEvaluator(String pathConfig, CompletableFuture<Evaluator> eval) {
+            this.pathConfig = pathConfig;
+            this.eval = eval;
+        }
+
+        CompletableFuture<Evaluator> loaded(String mainModule) {
+            return mainModules.getOrDefault(mainModule, eval);
+        }
+    }
+
+    @Override
+    public void close() {
+        SharedEvaluator actualShared = shared;
+        if (actualShared != null && closed.compareAndSet(false, true)) {
+            release(actualShared);
+        }
+    }
+
     private CompletableFuture<IConstructor> parseCommand(String command) {
         return store.thenApply(commandStore -> {
             try {
@@ -288,55 +402,56 @@ public class InterpretedLanguageContributions implements ILanguageContributions
 
     @Override
     public CompletableFuture<ITree> parseSourceFile(ISourceLocation loc, String input) {
-        return parser.thenApplyAsync(p -> p.call(VF.string(input), loc), exec);
+        return parseCache.lookupOrParse(parserIdentity, loc, input,
+            () -> parser.thenApplyAsync(p -> p.call(VF.string(input), loc), exec));
     }
 
     @Override
     public InterruptibleFuture<IList> outline(ITree input) {
         logger.debug("outline({})", TreeAdapter.getLocation(input));
-        return execFunction("outline",outliner, VF.list(), input);
+        return execFunction("outline", outliner, JobPriority.VISIBLE_DOCUMENT, VF.list(), input);
     }
 
     @Override
     public InterruptibleFuture<IConstructor> summarize(ISourceLocation src, ITree input) {
         logger.debug("summarize({})", src);
-        return execFunction("summarize", summarizer,
+        return execFunction("summarize", summarizer, JobPriority.BACKGROUND_CHECK,
             ParametricSummaryBridge.emptySummary(src), src, input);
     }
 
     @Override
     public InterruptibleFuture<ISet> lenses(ITree input) {
         logger.debug("lenses({})", TreeAdapter.getLocation(input));
-        return execFunction("lenses", lenses, VF.set(), input);
+        return execFunction("lenses", lenses, JobPriority.VISIBLE_DOCUMENT, VF.set(), input);
     }
 
     @Override
     public InterruptibleFuture<IList> inlayHint(@Nullable ITree input) {
         logger.debug("inlayHinter({})", input != null ? TreeAdapter.getLocation(input) : null);
-        return execFunction("inlayHinter", inlayHinter, VF.list(), input);
+        return execFunction("inlayHinter", inlayHinter, JobPriority.VISIBLE_DOCUMENT, VF.list(), input);
     }
 
     @Override
     public InterruptibleFuture<ISet> documentation(ISourceLocation loc, ITree input, ITree cursor) {
         logger.debug("documentation({})", TreeAdapter.getLocation(cursor));
-        return execFunction("", documenter, VF.set(), loc, input, cursor);
+        return execFunction("documentation", documenter, JobPriority.INTERACTIVE, VF.set(), loc, input, cursor);
     }
 
     @Override
     public InterruptibleFuture<ISet> defines(ISourceLocation loc, ITree input, ITree cursor) {
         logger.debug("defines({}, {})", loc, cursor != null ?  TreeAdapter.getLocation(cursor) : null);
-        return execFunction("defines", definer, VF.set(), loc, input, cursor);
+        return execFunction("defines", definer, JobPriority.INTERACTIVE, VF.set(), loc, input, cursor);
     }
 
     @Override
     public InterruptibleFuture<ISet> implementations(ISourceLocation loc, ITree input, ITree cursor) {
         logger.debug("implementer({})", TreeAdapter.getLocation(cursor));
-        return execFunction("implementer", implementer, VF.set(), loc, input, cursor);
+        return execFunction("implementer", implementer, JobPriority.INTERACTIVE, VF.set(), loc, input, cursor);
     }
     @Override
     public InterruptibleFuture<ISet> references(ISourceLocation loc, ITree input, ITree cursor) {
         logger.debug("references({})", TreeAdapter.getLocation(cursor));
-        return execFunction("references", referrer, VF.set(), loc, input, cursor);
+        return execFunction("references", referrer, JobPriority.INTERACTIVE, VF.set(), loc, input, cursor);
     }
 
 
@@ -418,14 +533,14 @@ public class InterpretedLanguageContributions implements ILanguageContributions
         ), exec);
     }
 
-    private <T> InterruptibleFuture<T> execFunction(String name, CompletableFuture<@Nullable IFunction> target, T defaultResult, IValue... args) {
+    private <T> InterruptibleFuture<T> execFunction(String name, CompletableFuture<@Nullable IFunction> target, JobPriority priority, T defaultResult, IValue... args) {
         return InterruptibleFuture.flatten(target.thenApply(
             s -> {
                 if (s == null) {
                     return InterruptibleFuture.completedFuture(defaultResult);
                 }
 
-                return EvaluatorUtil.runEvaluator(name, eval, e -> s.call(args), defaultResult, exec, false);
+                return EvaluatorUtil.runEvaluator(name, eval, e -> s.call(args), defaultResult, exec, false, priority);
             }),
             exec);
     }
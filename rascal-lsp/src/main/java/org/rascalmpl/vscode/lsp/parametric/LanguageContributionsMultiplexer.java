@@ -109,7 +109,10 @@ public class LanguageContributionsMultiplexer implements ILanguageContributions
 
     public void addContributor(String contribKey, ILanguageContributions contrib) {
         var newEntry = new KeyedLanguageContribution(contribKey, contrib);
-        contributions.remove(newEntry); // we use the fact that the equals only checks the key
+        int replaced = contributions.indexOf(newEntry); // we use the fact that the equals only checks the key
+        if (replaced >= 0) {
+            contributions.remove(replaced).contrib.close();
+        }
         contributions.addIfAbsent(newEntry);
         calculateRouting();
     }
@@ -118,7 +121,11 @@ public class LanguageContributionsMultiplexer implements ILanguageContributions
      * @returns false if the multiplexer is empty, and therefore should not be used anymore
      */
     public boolean removeContributor(String contribKey) {
-        contributions.removeIf(e -> e.key.equals(contribKey));
+        for (var e : contributions) {
+            if (e.key.equals(contribKey) && contributions.remove(e)) {
+                e.contrib.close();
+            }
+        }
         if (contributions.isEmpty()) {
             return false;
         }
@@ -126,6 +133,15 @@ public class LanguageContributionsMultiplexer implements ILanguageContributions
         return true;
     }
 
+    @Override
+    public void close() {
+        for (var e : contributions) {
+            if (contributions.remove(e)) {
+                e.contrib.close();
+            }
+        }
+    }
+
     private synchronized void calculateRouting() {
         // after contributions have changed, we calculate the routing
         // this is to avoid doing this lookup every time we get a request
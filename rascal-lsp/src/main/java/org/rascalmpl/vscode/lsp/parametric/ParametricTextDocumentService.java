@@ -36,6 +36,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
@@ -76,9 +77,11 @@ import org.eclipse.lsp4j.SemanticTokensParams;
 import org.eclipse.lsp4j.SemanticTokensRangeParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.SymbolInformation;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
 import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
@@ -168,7 +171,7 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
 
     public void initializeServerCapabilities(ServerCapabilities result) {
         result.setDefinitionProvider(true);
-        result.setTextDocumentSync(TextDocumentSyncKind.Full);
+        result.setTextDocumentSync(TextDocumentSyncKind.Incremental);
         result.setHoverProvider(true);
         result.setReferencesProvider(true);
         result.setDocumentSymbolProvider(true);
@@ -204,13 +207,15 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
     @Override
     public void didOpen(DidOpenTextDocumentParams params) {
         logger.debug("Did Open file: {}", params.getTextDocument());
-        handleParsingErrors(open(params.getTextDocument()));
+        TextDocumentState file = open(params.getTextDocument());
+        facts(file.getLocation()).open(file.getLocation());
+        handleParsingErrors(file);
     }
 
     @Override
     public void didChange(DidChangeTextDocumentParams params) {
         logger.trace("Change contents: {}", params.getTextDocument());
-        updateContents(params.getTextDocument(), last(params.getContentChanges()).getText());
+        updateContents(params.getTextDocument(), params.getContentChanges());
         invalidateFacts(params.getTextDocument());
     }
 
@@ -222,6 +227,8 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
                 "Unknown file: " + Locations.toLoc(params.getTextDocument()), params));
         }
         facts(params.getTextDocument()).close(Locations.toLoc(params.getTextDocument()));
+        tokenizer.forget(Locations.toLoc(params.getTextDocument()));
+        columns.clear(Locations.toLoc(params.getTextDocument()));
     }
 
     private void triggerSummary(TextDocumentIdentifier doc) {
@@ -240,15 +247,26 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         triggerSummary(params.getTextDocument());
     }
 
-    private TextDocumentState updateContents(TextDocumentIdentifier doc, String newContents) {
+    private TextDocumentState updateContents(VersionedTextDocumentIdentifier doc, List<TextDocumentContentChangeEvent> changes) {
         TextDocumentState file = getFile(doc);
         logger.trace("New contents for {}", doc);
-        handleParsingErrors(file, file.update(newContents));
+        CompletableFuture<ITree> previous = file.getCurrentTreeAsync();
+        CompletableFuture<ITree> next = file.update(doc.getVersion(), changes);
+        columns.update(file.getLocation(), doc.getVersion(), changes, file::getCurrentLines);
+        if (next != previous) {
+            // during a burst of changes the same pending tree is returned, we only have to report errors once
+            handleParsingErrors(file, next);
+        }
         return file;
     }
 
     private void handleParsingErrors(TextDocumentState file, CompletableFuture<ITree> futureTree) {
         futureTree.handle((tree, excp) -> {
+            int version = file.getParsedVersion();
+            if (version != file.getCurrentVersion()) {
+                logger.trace("Dropping parse result of version {} for {}, a newer version is pending", version, file.getLocation());
+                return null;
+            }
             Diagnostic newParseError = null;
             if (excp != null && excp instanceof CompletionException) {
                 excp = excp.getCause();
@@ -270,7 +288,7 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
                     "Rascal Parser");
             }
             logger.trace("Finished parsing tree, reporting new parse error: {} for: {}", newParseError, file.getLocation());
-            facts(file.getLocation()).reportParseErrors(file.getLocation(),
+            facts(file.getLocation()).reportParseErrors(file.getLocation(), version,
                 newParseError == null ? Collections.emptyList() : Collections.singletonList(newParseError));
             return null;
         });
@@ -281,8 +299,10 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         logger.trace("codeLens for: {}", params.getTextDocument().getUri());
         final TextDocumentState file = getFile(params.getTextDocument());
         final ILanguageContributions contrib = contributions(params.getTextDocument());
+        final int version = file.getCurrentVersion();
 
         return recoverExceptions(file.getCurrentTreeAsync()
+            .thenApply(t -> file.ensureVersion(version, t))
             .thenApply(contrib::lenses)
             .thenCompose(InterruptibleFuture::get)
             .thenApply(s -> s.stream()
@@ -296,8 +316,10 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         logger.trace("inlayHint for: {}", params.getTextDocument().getUri());
         final TextDocumentState file = getFile(params.getTextDocument());
         final ILanguageContributions contrib = contributions(params.getTextDocument());
+        final int version = file.getCurrentVersion();
         return recoverExceptions(
                 recoverExceptions(file.getCurrentTreeAsync(), file::getMostRecentTree)
+                .thenApply(t -> file.ensureVersion(version, t))
                 .thenApply(contrib::inlayHint)
                 .thenCompose(InterruptibleFuture::get)
                 .thenApply(s -> s.stream()
@@ -310,6 +332,10 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
     private static <T> CompletableFuture<T> recoverExceptions(CompletableFuture<T> future, Supplier<T> defaultValue) {
         return future
             .exceptionally(e -> {
+                if (TextDocumentState.isContentModified(e)) {
+                    // not a failure, the client has to ask again for the newer version
+                    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                }
                 logger.error("Operation failed with", e);
                 return defaultValue.get();
             });
@@ -354,10 +380,6 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         handleParsingErrors(file, file.getCurrentTreeAsync());
     }
 
-    private static <T> T last(List<T> l) {
-        return l.get(l.size() - 1);
-    }
-
     private ILanguageContributions contributions(TextDocumentIdentifier doc) {
         return contributions(doc.getUri());
     }
@@ -401,9 +423,10 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
     }
 
     private TextDocumentState open(TextDocumentItem doc) {
-        return files.computeIfAbsent(Locations.toLoc(doc),
-            l -> new TextDocumentState(contributions(doc)::parseSourceFile, l, doc.getText())
-        );
+        return files.computeIfAbsent(Locations.toLoc(doc), l -> {
+            columns.open(l, doc.getVersion(), doc.getText());
+            return new TextDocumentState(contributions(doc)::parseSourceFile, l, doc.getVersion(), doc.getText());
+        });
     }
 
     private TextDocumentState getFile(TextDocumentIdentifier doc) {
@@ -422,32 +445,40 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         ownExecuter.shutdown();
     }
 
-    private CompletableFuture<SemanticTokens> getSemanticTokens(TextDocumentIdentifier doc) {
-        return recoverExceptions(getFile(doc).getCurrentTreeAsync()
-                .thenApplyAsync(tokenizer::semanticTokensFull, ownExecuter)
+    private <T> CompletableFuture<T> getSemanticTokens(TextDocumentIdentifier doc,
+        BiFunction<ISourceLocation, ITree, T> tokenize, Supplier<T> empty) {
+        final TextDocumentState file = getFile(doc);
+        final int version = file.getCurrentVersion();
+        return recoverExceptions(file.getCurrentTreeAsync()
+                .thenApply(t -> file.ensureVersion(version, t))
+                .thenApplyAsync(t -> tokenize.apply(file.getLocation(), t), ownExecuter)
                 .whenComplete((r, e) ->
-                    logger.trace("Semantic tokens success, reporting {} tokens back", r == null ? 0 : r.getData().size() / 5)
+                    logger.trace("Semantic tokens success for {}", file.getLocation())
                 )
-            , () -> new SemanticTokens(Collections.emptyList()));
+            , empty);
     }
 
     @Override
     public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
         logger.debug("semanticTokensFull: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument());
+        return getSemanticTokens(params.getTextDocument(), tokenizer::semanticTokensFull,
+            () -> new SemanticTokens(Collections.emptyList()));
     }
 
     @Override
     public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
             SemanticTokensDeltaParams params) {
-        logger.debug("semanticTokensFullDelta: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument()).thenApply(Either::forLeft);
+        logger.debug("semanticTokensFullDelta: {} from {}", params.getTextDocument(), params.getPreviousResultId());
+        return getSemanticTokens(params.getTextDocument(),
+            (loc, t) -> tokenizer.semanticTokensFullDelta(loc, params.getPreviousResultId(), t),
+            () -> Either.forLeft(new SemanticTokens(Collections.emptyList())));
     }
 
     @Override
     public CompletableFuture<SemanticTokens> semanticTokensRange(SemanticTokensRangeParams params) {
         logger.debug("semanticTokensRange: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument());
+        return getSemanticTokens(params.getTextDocument(), (loc, t) -> tokenizer.semanticTokensRange(params.getRange(), t),
+            () -> new SemanticTokens(Collections.emptyList()));
     }
 
     @Override
@@ -455,8 +486,10 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
         logger.debug("Outline/documentSymbols: {}", params.getTextDocument());
 
         final TextDocumentState file = getFile(params.getTextDocument());
+        final int version = file.getCurrentVersion();
         ILanguageContributions contrib = contributions(params.getTextDocument());
         return recoverExceptions(file.getCurrentTreeAsync()
+            .thenApply(t -> file.ensureVersion(version, t))
             .thenApply(contrib::outline)
             .thenCompose(InterruptibleFuture::get)
             .thenApply(c -> Outline.buildOutline(c, columns.get(file.getLocation())))
@@ -550,20 +583,27 @@ public class ParametricTextDocumentService implements IBaseTextDocumentService,
             // clear the whole language
             logger.trace("unregisterLanguage({}) completly", lang.getName());
             facts.remove(extension);
-            contributions.remove(extension);
+            closeContributions(extension);
             return;
         }
         logger.trace("unregisterLanguage({}) only {}", lang.getName(), lang.getMainModule());
         if (!contributions.get(extension).removeContributor(buildContributionKey(lang))) {
             logger.error("unregisterLanguage cleared everything, so removing all");
             facts.remove(extension);
-            contributions.remove(extension);
+            closeContributions(extension);
         }
         else {
             facts.get(extension).reloadContributions();
         }
     }
 
+    private void closeContributions(String extension) {
+        var removed = contributions.remove(extension);
+        if (removed != null) {
+            removed.close();
+        }
+    }
+
     @Override
     public CompletableFuture<IValue> executeCommand(String extension, String command) {
         ILanguageContributions contribs = contributions.get(extension);
@@ -29,19 +29,19 @@ package org.rascalmpl.vscode.lsp.parametric.model;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.rascalmpl.vscode.lsp.TextDocumentState;
 import org.rascalmpl.vscode.lsp.parametric.ILanguageContributions;
+import org.rascalmpl.vscode.lsp.util.DiagnosticsPublisher;
+import org.rascalmpl.vscode.lsp.util.FactsCache;
 import org.rascalmpl.vscode.lsp.util.locations.ColumnMaps;
 
 import io.usethesource.vallang.ISourceLocation;
@@ -49,8 +49,14 @@ import io.usethesource.vallang.ISourceLocation;
 public class ParametricFileFacts {
     private static final Logger logger = LogManager.getLogger(ParametricFileFacts.class);
     private final Executor exec;
-    private volatile @MonotonicNonNull LanguageClient client;
-    private final Map<ISourceLocation, FileFact> files = new ConcurrentHashMap<>();
+    private final DiagnosticsPublisher diagnostics;
+    /**
+     * Open documents and files with diagnostics weigh nothing, so they are never evicted. Other files (for example
+     * files that were closed while their messages were still being calculated) are evicted once the budget is used up.
+     * We do not know how large a summary of a DSL is, so every file gets the same estimated weight.
+     */
+    private static final int ESTIMATED_WEIGHT = 1000;
+    private final FactsCache<ISourceLocation, FileFact> files = new FactsCache<>(FileFact::weight);
     private final ILanguageContributions contrib;
     private final Function<ISourceLocation, TextDocumentState> lookupState;
     private final ColumnMaps columns;
@@ -61,22 +67,30 @@ public class ParametricFileFacts {
         this.lookupState = lookupState;
         this.columns = columns;
         this.exec = exec;
+        this.diagnostics = new DiagnosticsPublisher(exec);
     }
 
     public void setClient(LanguageClient client) {
-        this.client = client;
+        diagnostics.setClient(client);
     }
 
-    public void reportParseErrors(ISourceLocation file, List<Diagnostic> msgs) {
-        getFile(file).reportParseErrors(msgs);
+    public void reportParseErrors(ISourceLocation file, int version, List<Diagnostic> msgs) {
+        getFile(file).reportParseErrors(version, msgs);
     }
 
     private FileFact getFile(ISourceLocation l) {
-        return files.computeIfAbsent(l, FileFact::new);
+        return files.get(l, FileFact::new);
+    }
+
+    /**
+     * The weight of a fact changes with its state, replacing it with itself makes the cache weigh it again
+     */
+    private void reweigh(FileFact fact) {
+        files.reweigh(fact.file, fact);
     }
 
     public void reloadContributions() {
-        files.values().forEach(FileFact::reloadContributions);
+        files.asMap().values().forEach(FileFact::reloadContributions);
     }
 
     public ParametricSummaryBridge getSummary(ISourceLocation file) {
@@ -84,7 +98,7 @@ public class ParametricFileFacts {
     }
 
     public void invalidate(ISourceLocation file) {
-        var current = files.get(file);
+        var current = files.getIfPresent(file);
         if (current != null) {
             current.invalidate(false);
         }
@@ -94,16 +108,29 @@ public class ParametricFileFacts {
         getFile(file).calculate();
     }
 
+    /**
+     * The document is opened in the editor, its facts are pinned until it is closed again
+     */
+    public void open(ISourceLocation loc) {
+        var fact = getFile(loc);
+        fact.open = true;
+        reweigh(fact);
+    }
+
     public void close(ISourceLocation loc) {
-        var present = files.get(loc);
+        var present = files.getIfPresent(loc);
         if (present != null) {
+            present.open = false;
+            reweigh(present);
             present.invalidate(true);
             present.summary.getMessages().thenAccept(m -> {
                 if (m.isEmpty()) {
                     // only if there are no messages for this class, can we remove it
                     // else vscode comes back and we've dropped the messages in our internal data
-                    files.remove(loc);
+                    files.asMap().remove(loc, present);
+                    diagnostics.forget(loc.getURI().toString());
                 }
+                logger.debug("Facts after closing {}: {}", loc, files.getFootprint());
             });
         }
     }
@@ -112,6 +139,10 @@ public class ParametricFileFacts {
         private final ISourceLocation file;
         private volatile List<Diagnostic> parseMessages = Collections.emptyList();
         private volatile List<Diagnostic> typeCheckerMessages = Collections.emptyList();
+        /** version of the document the parse messages belong to, if it was opened in the editor */
+        private volatile @Nullable Integer version = null;
+        /** opened in the editor, only set by {@link ParametricFileFacts#open} and {@link ParametricFileFacts#close} */
+        private volatile boolean open = false;
         private final ParametricSummaryBridge summary;
 
         public FileFact(ISourceLocation file) {
@@ -123,8 +154,16 @@ public class ParametricFileFacts {
             summary.reloadContributions();
         }
 
+        int weight() {
+            if (open || !parseMessages.isEmpty() || !typeCheckerMessages.isEmpty()) {
+                return 0;
+            }
+            return ESTIMATED_WEIGHT;
+        }
+
         private void reportTypeCheckerMessages(List<Diagnostic> messages) {
             typeCheckerMessages = messages;
+            reweigh(this);
             sendDiagnostics();
         }
 
@@ -141,20 +180,17 @@ public class ParametricFileFacts {
             return summary;
         }
 
-        public void reportParseErrors(List<Diagnostic> msgs) {
+        public void reportParseErrors(int version, List<Diagnostic> msgs) {
+            this.version = version;
             parseMessages = msgs;
+            reweigh(this);
             sendDiagnostics();
         }
 
         private void sendDiagnostics() {
-            if (client == null) {
-                logger.debug("Cannot send diagnostics since the client hasn't been registered yet");
-                return;
-            }
-            logger.trace("Sending diagnostics for {}. {} messages", file, typeCheckerMessages.size());
-            client.publishDiagnostics(new PublishDiagnosticsParams(
-                file.getURI().toString(),
-                union(parseMessages, typeCheckerMessages)));
+            String uri = file.getURI().toString();
+            diagnostics.publish(uri, () -> new PublishDiagnosticsParams(uri,
+                union(parseMessages, typeCheckerMessages), version));
         }
     }
 
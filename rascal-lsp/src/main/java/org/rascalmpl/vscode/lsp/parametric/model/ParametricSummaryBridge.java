@@ -40,7 +40,6 @@ import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.MarkedString;
 import org.eclipse.lsp4j.Position;
-import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.rascalmpl.values.IRascalValueFactory;
 import org.rascalmpl.values.parsetrees.ITree;
@@ -54,6 +53,8 @@ import org.rascalmpl.vscode.lsp.util.concurrent.ReplaceableFuture;
 import org.rascalmpl.vscode.lsp.util.locations.ColumnMaps;
 import org.rascalmpl.vscode.lsp.util.locations.IRangeMap;
 import org.rascalmpl.vscode.lsp.util.locations.Locations;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
+import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayRangeMap;
 import org.rascalmpl.vscode.lsp.util.locations.impl.TreeMapLookup;
 import io.usethesource.vallang.IConstructor;
 import io.usethesource.vallang.IRelation;
@@ -188,9 +189,10 @@ public class ParametricSummaryBridge {
             }
 
             logger.trace("{}: using summary to lookup {} (in summary: {})", logName, cursor, activeSummary);
+            long packedCursor = PackedPositions.pack(cursor);
             return activeSummary
                 .thenApplyAsync(Lazy::get, exec)
-                .thenApply(l -> l.lookup(new Range(cursor, cursor)))
+                .thenApply(l -> l.lookup(packedCursor))
                 .thenApply(r -> r == null ? this.empty : r);
         }
     }
@@ -230,9 +232,12 @@ public class ParametricSummaryBridge {
 
         @Override
         InterruptibleFuture<List<T>> requestDedicated(Position cursor) {
-            var result = lookupState.apply(file)
+            var state = lookupState.apply(file);
+            var version = state.getCurrentVersion();
+            var result = state
                     .getCurrentTreeAsync()
                     .thenApplyAsync(t -> {
+                        state.ensureVersion(version, t);
                         var line = cursor.getLine() + 1;
                         var translatedOffset = columns.get(file).translateInverseColumn(line, cursor.getCharacter(), false);
                         var cursorTree = TreeAdapter.locateLexical(t, line, translatedOffset);
@@ -269,27 +274,20 @@ public class ParametricSummaryBridge {
 
         IRangeMap<List<T>> translateRelation(IRelation<ISet> binaryRel) {
             logger.trace("{}: summary contain rel of size:{}", () -> logName, () -> binaryRel.asContainer().size());
-            TreeMapLookup<List<T>> result = new TreeMapLookup<>();
+            ArrayRangeMap.Builder<List<T>> result = ArrayRangeMap.builder();
             for (IValue v: binaryRel) {
                 ITuple row = (ITuple)v;
-                Range from = Locations.toRange((ISourceLocation)row.get(0), columns);
-                T to = mapValue(row.get(1));
-                var existing = result.getExact(from);
-                if (existing == null) {
-                    // most cases there is only a single entry, to so save a lot of memory, we store a singleton list to start with
-                    result.put(from, Collections.singletonList(to));
-                }
-                else if (existing.size() == 1) {
+                // most cases there is only a single entry, to so save a lot of memory, we store a singleton list to start with
+                Locations.putRange(result, (ISourceLocation)row.get(0), columns, Collections.singletonList(mapValue(row.get(1))));
+            }
+            return result.build((existing, extra) -> {
+                if (existing.size() == 1) {
                     // we had a singleton list in there, so let's replace it with a regular list
                     existing = new ArrayList<>(existing);
-                    result.put(from, existing);
-                    existing.add(to);
                 }
-                else {
-                    existing.add(to);
-                }
-            }
-            return result;
+                existing.addAll(extra);
+                return existing;
+            });
         }
     }
 
@@ -352,9 +350,11 @@ public class ParametricSummaryBridge {
 
     private void calculateSummary(boolean internal) {
         logger.trace("Requesting Summary calculation for: {}", file);
-        var summary = InterruptibleFuture.flatten(lookupState.apply(file)
+        var state = lookupState.apply(file);
+        var version = state.getCurrentVersion();
+        var summary = InterruptibleFuture.flatten(state
             .getCurrentTreeAsync()
-            .thenApplyAsync(t -> contrib.summarize(file, t), exec)
+            .thenApplyAsync(t -> contrib.summarize(file, state.ensureVersion(version, t)), exec)
             , exec);
         definitions.thenAccept(d -> d.newSummary(summary, internal));
         references.thenAccept(d -> d.newSummary(summary, internal));
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.rascal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.rascalmpl.library.lang.rascal.syntax.RascalParser;
+import org.rascalmpl.parser.gtd.result.out.DefaultNodeFlattener;
+import org.rascalmpl.parser.uptr.UPTRNodeFactory;
+import org.rascalmpl.parser.uptr.action.NoActionExecutor;
+import org.rascalmpl.values.IRascalValueFactory;
+import org.rascalmpl.values.RascalValueFactory;
+import org.rascalmpl.values.parsetrees.ITree;
+import org.rascalmpl.values.parsetrees.ProductionAdapter;
+import org.rascalmpl.values.parsetrees.TreeAdapter;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IListWriter;
+import io.usethesource.vallang.ISetWriter;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IValue;
+
+/**
+ * Reparse only the part of a Rascal module that changed.
+ *
+ * We look for the smallest node that encloses the edit and whose sort is a reparse boundary
+ * (a top level declaration). Only that region is parsed again, and the new subtree is spliced
+ * into the previous tree. The source locations of everything after the edit are shifted,
+ * subtrees whose locations do not change (for example when the edit keeps the length and lines
+ * of the region the same) are shared with the previous tree.
+ *
+ * If anything does not fit (no previous tree, edit touches the edge of a boundary, parse error
+ * in the region, etc.) we return null, and the caller has to do a full parse. A full parse is also
+ * needed to get proper error locations.
+ */
+public class IncrementalReparser {
+    private static final Logger logger = LogManager.getLogger(IncrementalReparser.class);
+    private static final IRascalValueFactory VF = IRascalValueFactory.getInstance();
+
+    /** sorts that can be parsed in isolation without changing the meaning of the surrounding tree */
+    private static final Set<String> REPARSE_BOUNDARIES = Collections.singleton("Toplevel");
+
+    private IncrementalReparser() {}
+
+    /**
+     * @return the new tree, or null if the caller has to fallback to a full parse
+     */
+    @SuppressWarnings("java:S1181") // any failure in the incremental path means we do a full parse instead
+    public static @Nullable ITree reparse(ISourceLocation file, String previousContents, ITree previousTree, String newContents) {
+        try {
+            int prefix = commonPrefix(previousContents, newContents);
+            int suffix = commonSuffix(previousContents, newContents, prefix);
+            int delta = newContents.length() - previousContents.length();
+            if (prefix == previousContents.length() - suffix && delta == 0) {
+                return previousTree; // nothing changed
+            }
+            // source locations count codepoints, while java strings count utf-16 chars
+            int editStart = previousContents.codePointCount(0, prefix);
+            int editEnd = previousContents.codePointCount(0, previousContents.length() - suffix);
+
+            List<PathStep> path = new ArrayList<>();
+            int boundary = findBoundary(previousTree, editStart, editEnd, path);
+            if (boundary < 0) {
+                logger.trace("No reparse boundary around [{},{}), falling back to full parse", editStart, editEnd);
+                return null;
+            }
+            // we only keep the path up to the boundary, the deeper steps were just candidates
+            List<PathStep> spine = path.subList(0, boundary);
+            ITree oldRegion = path.get(boundary).tree;
+            ISourceLocation oldLoc = TreeAdapter.getLocation(oldRegion);
+
+            String sort = ProductionAdapter.getSortName(TreeAdapter.getProduction(oldRegion));
+            int regionStart = previousContents.offsetByCodePoints(0, oldLoc.getOffset());
+            int regionEnd = previousContents.offsetByCodePoints(regionStart, oldLoc.getLength()) + delta;
+            char[] regionInput = newContents.substring(regionStart, regionEnd).toCharArray();
+            ITree newRegion = new RascalParser().parse(sort, file.getURI(), regionInput, new NoActionExecutor(),
+                new DefaultNodeFlattener<>(), new UPTRNodeFactory(true));
+
+            // the freshly parsed region starts at offset 0, line 1, column 0
+            newRegion = mapLocations(newRegion, l -> moveTo(l, oldLoc));
+            ISourceLocation newLoc = TreeAdapter.getLocation(newRegion);
+            if (newLoc == null) {
+                return null;
+            }
+
+            ITree result = newRegion;
+            UnaryOperator<ISourceLocation> shift = l -> shiftAfter(l, oldLoc, newLoc);
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                PathStep step = spine.get(i);
+                result = replaceChild(step.tree, step.childIndex, result, shift);
+            }
+            logger.trace("Reparsed {} chars of {} instead of the whole file", regionInput.length, file);
+            return result;
+        }
+        catch (Throwable e) {
+            logger.trace("Incremental reparse of {} failed, falling back to full parse", file, e);
+            return null;
+        }
+    }
+
+    private static final class PathStep {
+        private final ITree tree;
+        private final int childIndex;
+
+        PathStep(ITree tree, int childIndex) {
+            this.tree = tree;
+            this.childIndex = childIndex;
+        }
+    }
+
+    /**
+     * Walk down the tree, following the child that strictly encloses the edit.
+     * @return the index in the path of the deepest reparse boundary, or -1
+     */
+    private static int findBoundary(ITree tree, int editStart, int editEnd, List<PathStep> path) {
+        int boundary = -1;
+        ITree current = tree;
+        while (current.isAppl()) {
+            IList args = TreeAdapter.getArgs(current);
+            if (isBoundary(current, editStart, editEnd)) {
+                boundary = path.size();
+            }
+            int next = -1;
+            for (int i = 0; i < args.length(); i++) {
+                ITree child = (ITree) args.get(i);
+                if (encloses(child, editStart, editEnd)) {
+                    next = i;
+                    break;
+                }
+            }
+            path.add(new PathStep(current, next));
+            if (next == -1) {
+                break;
+            }
+            current = (ITree) args.get(next);
+        }
+        return boundary;
+    }
+
+    private static boolean isBoundary(ITree tree, int editStart, int editEnd) {
+        if (TreeAdapter.isLayout(tree) || !encloses(tree, editStart, editEnd)) {
+            return false;
+        }
+        IConstructor prod = TreeAdapter.getProduction(tree);
+        return ProductionAdapter.isDefault(prod) && REPARSE_BOUNDARIES.contains(ProductionAdapter.getSortName(prod));
+    }
+
+    /**
+     * Does the tree contain the edit without the edit touching the edges of the tree?
+     * Edits at the edges might merge with the layout around it.
+     */
+    private static boolean encloses(ITree tree, int editStart, int editEnd) {
+        if (!tree.isAppl()) {
+            return false;
+        }
+        ISourceLocation loc = TreeAdapter.getLocation(tree);
+        return loc != null && loc.hasOffsetLength() && loc.hasLineColumn()
+            && loc.getOffset() < editStart && editEnd < loc.getOffset() + loc.getLength();
+    }
+
+    private static ITree replaceChild(ITree parent, int index, ITree newChild, UnaryOperator<ISourceLocation> shift) {
+        IList args = TreeAdapter.getArgs(parent);
+        IListWriter newArgs = VF.listWriter();
+        for (int i = 0; i < args.length(); i++) {
+            ITree arg = (ITree) args.get(i);
+            if (i < index) {
+                newArgs.append(arg); // before the edit, nothing changes
+            }
+            else if (i == index) {
+                newArgs.append(newChild);
+            }
+            else {
+                newArgs.append(mapLocations(arg, shift));
+            }
+        }
+        return copyAttributes(parent, VF.appl(TreeAdapter.getProduction(parent), newArgs.done()), shift);
+    }
+
+    /**
+     * Rebuild the tree with new locations. The mapper has to leave the locations of all descendants
+     * of a node unchanged if it leaves the location of that node unchanged, as then the node is reused as is.
+     */
+    private static ITree mapLocations(ITree tree, UnaryOperator<ISourceLocation> mapper) {
+        ISourceLocation loc = TreeAdapter.getLocation(tree);
+        if (loc != null && loc.hasLineColumn() && mapper.apply(loc).equals(loc)) {
+            return tree;
+        }
+        ITree result;
+        if (tree.isAppl()) {
+            IListWriter args = VF.listWriter();
+            for (IValue arg : TreeAdapter.getArgs(tree)) {
+                args.append(mapLocations((ITree) arg, mapper));
+            }
+            result = VF.appl(TreeAdapter.getProduction(tree), args.done());
+        }
+        else if (tree.isAmb()) {
+            ISetWriter alts = VF.setWriter();
+            for (IValue alt : TreeAdapter.getAlternatives(tree)) {
+                alts.insert(mapLocations((ITree) alt, mapper));
+            }
+            result = VF.amb(alts.done());
+        }
+        else {
+            return tree; // chars and cycles have no locations
+        }
+        return copyAttributes(tree, result, mapper);
+    }
+
+    private static ITree copyAttributes(ITree original, ITree fresh, UnaryOperator<ISourceLocation> mapper) {
+        IConstructor result = fresh;
+        var kws = original.asWithKeywordParameters();
+        if (kws.hasParameters()) {
+            result = result.asWithKeywordParameters().setParameters(kws.getParameters());
+        }
+        ISourceLocation loc = TreeAdapter.getLocation(original);
+        if (loc != null) {
+            result = result.asWithKeywordParameters().setParameter(RascalValueFactory.Location, mapper.apply(loc));
+        }
+        return (ITree) result;
+    }
+
+    /**
+     * Translate a location relative to the start of the region to an absolute one
+     */
+    private static ISourceLocation moveTo(ISourceLocation l, ISourceLocation region) {
+        if (!l.hasLineColumn()) {
+            return l;
+        }
+        int baseLine = region.getBeginLine();
+        int baseColumn = region.getBeginColumn();
+        return VF.sourceLocation(l.top(),
+            l.getOffset() + region.getOffset(), l.getLength(),
+            l.getBeginLine() + baseLine - 1, l.getEndLine() + baseLine - 1,
+            l.getBeginLine() == 1 ? l.getBeginColumn() + baseColumn : l.getBeginColumn(),
+            l.getEndLine() == 1 ? l.getEndColumn() + baseColumn : l.getEndColumn());
+    }
+
+    /**
+     * Shift the parts of a location that come after the replaced region.
+     * If this leaves a location after the region unchanged, the offsets and lines did not move,
+     * so the location starts on a later line than the end of the region, and so do all locations inside it.
+     */
+    private static ISourceLocation shiftAfter(ISourceLocation l, ISourceLocation oldRegion, ISourceLocation newRegion) {
+        if (!l.hasLineColumn()) {
+            return l;
+        }
+        int oldEnd = oldRegion.getOffset() + oldRegion.getLength();
+        int offsetDelta = newRegion.getLength() - oldRegion.getLength();
+        int lineDelta = newRegion.getEndLine() - oldRegion.getEndLine();
+        int columnDelta = newRegion.getEndColumn() - oldRegion.getEndColumn();
+
+        int begin = l.getOffset();
+        int end = begin + l.getLength();
+        int beginLine = l.getBeginLine();
+        int beginColumn = l.getBeginColumn();
+        int endLine = l.getEndLine();
+        int endColumn = l.getEndColumn();
+        if (begin >= oldEnd) {
+            begin += offsetDelta;
+            beginColumn += beginLine == oldRegion.getEndLine() ? columnDelta : 0;
+            beginLine += lineDelta;
+        }
+        if (end >= oldEnd) {
+            end += offsetDelta;
+            endColumn += endLine == oldRegion.getEndLine() ? columnDelta : 0;
+            endLine += lineDelta;
+        }
+        return VF.sourceLocation(l.top(), begin, end - begin, beginLine, endLine, beginColumn, endColumn);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        return i;
+    }
+}
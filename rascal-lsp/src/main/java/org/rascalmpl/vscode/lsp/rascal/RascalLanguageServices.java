@@ -56,7 +56,10 @@ import org.rascalmpl.values.parsetrees.ITree;
 import org.rascalmpl.values.parsetrees.TreeAdapter;
 import org.rascalmpl.vscode.lsp.BaseWorkspaceService;
 import org.rascalmpl.vscode.lsp.IBaseLanguageClient;
+import org.rascalmpl.vscode.lsp.util.EvaluatorPool;
+import org.rascalmpl.vscode.lsp.util.ParseTreeCache;
 import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
 
 import io.usethesource.vallang.IConstructor;
 import io.usethesource.vallang.IList;
@@ -71,27 +74,61 @@ public class RascalLanguageServices {
 
     private static final Logger logger = LogManager.getLogger(RascalLanguageServices.class);
 
-    private final CompletableFuture<Evaluator> outlineEvaluator;
-    private final CompletableFuture<Evaluator> summaryEvaluator;
-    private final CompletableFuture<Evaluator> compilerEvaluator;
+    /**
+     * Startup mode in which the first compiler and summary evaluator are one and the same, such that the module closure
+     * of the type checker is only parsed and loaded once. Their jobs then take turns on that evaluator (checks before summaries
+     * of the same project is the order we want anyway), until the pools start more evaluators.
+     *
+     * The price is latency: on the shared evaluator a summary for a visible document ({@link JobPriority#VISIBLE_DOCUMENT})
+     * waits for a running check ({@link JobPriority#BACKGROUND_CHECK}) to finish, since it does not preempt it, so hovers and
+     * jumps can stall for the length of a check. That is why this mode is off by default: it trades responsiveness
+     * during the first checks for memory and startup time.
+     */
+    private static final boolean SHARED_CHECKER = Boolean.getBoolean("rascal.lsp.evaluators.sharedChecker");
+
+    private final EvaluatorPool outlineEvaluators;
+    private final EvaluatorPool summaryEvaluators;
+    private final EvaluatorPool compilerEvaluators;
 
     private final ExecutorService exec;
 
+    private final ParseTreeCache parseCache = new ParseTreeCache("Rascal");
+    private final String parserIdentity = ParseTreeCache.newParserIdentity("Rascal");
+
     public RascalLanguageServices(RascalTextDocumentService docService, BaseWorkspaceService workspaceService, IBaseLanguageClient client, ExecutorService exec) {
         this.exec = exec;
 
-        outlineEvaluator = makeFutureEvaluator(exec, docService, workspaceService, client, "Rascal outline", null, true, "lang::rascal::lsp::Outline");
-        summaryEvaluator = makeFutureEvaluator(exec, docService, workspaceService, client, "Rascal summary", null, true, "lang::rascalcore::check::Summary");
-        compilerEvaluator = makeFutureEvaluator(exec, docService, workspaceService, client, "Rascal compiler", null, true, "lang::rascalcore::check::Checker");
+        // all evaluators load in parallel, the first compiler and summary evaluators can share their (largely overlapping) modules
+        @Nullable CompletableFuture<Evaluator> sharedChecker = SHARED_CHECKER
+            ? makeFutureEvaluator(exec, docService, workspaceService, client, "Rascal compiler & summary", null, true, "lang::rascalcore::check::Checker", "lang::rascalcore::check::Summary")
+            : null;
+        outlineEvaluators = new EvaluatorPool("Rascal outline", EvaluatorPool.configuredSize("outline"),
+            i -> makeFutureEvaluator(exec, docService, workspaceService, client, evaluatorLabel("Rascal outline", i), null, true, "lang::rascal::lsp::Outline"));
+        summaryEvaluators = new EvaluatorPool("Rascal summary", EvaluatorPool.configuredSize("summary"),
+            i -> i == 0 && sharedChecker != null
+                ? sharedChecker
+                : makeFutureEvaluator(exec, docService, workspaceService, client, evaluatorLabel("Rascal summary", i), null, true, "lang::rascalcore::check::Summary"));
+        compilerEvaluators = new EvaluatorPool("Rascal compiler", EvaluatorPool.configuredSize("compiler"),
+            i -> i == 0 && sharedChecker != null
+                ? sharedChecker
+                : makeFutureEvaluator(exec, docService, workspaceService, client, evaluatorLabel("Rascal compiler", i), null, true, "lang::rascalcore::check::Checker"));
+    }
+
+    private static String evaluatorLabel(String label, int index) {
+        return index == 0 ? label : (label + " #" + (index + 1));
     }
 
     public InterruptibleFuture<@Nullable IConstructor> getSummary(ISourceLocation occ, PathConfig pcfg) {
+        return getSummary(occ, pcfg, JobPriority.VISIBLE_DOCUMENT);
+    }
+
+    public InterruptibleFuture<@Nullable IConstructor> getSummary(ISourceLocation occ, PathConfig pcfg, JobPriority priority) {
         try {
             IString moduleName = VF.string(pcfg.getModuleName(occ));
-            return runEvaluator("Rascal makeSummary", summaryEvaluator, eval -> {
+            return runEvaluator("Rascal makeSummary", summaryEvaluators.get(pcfg.getBin()), eval -> {
                 IConstructor result = (IConstructor) eval.call("makeSummary", moduleName, pcfg.asConstructor());
                 return result != null && result.asWithKeywordParameters().hasParameters() ? result : null;
-            }, null, exec, false);
+            }, null, exec, false, priority);
         } catch (IOException e) {
             logger.error("Error looking up module name from source location {}", occ, e);
             return new InterruptibleFuture<>(CompletableFuture.completedFuture(null), () -> {
@@ -101,9 +138,9 @@ public class RascalLanguageServices {
 
     public InterruptibleFuture<Map<ISourceLocation, ISet>> compileFolder(ISourceLocation folder, PathConfig pcfg,
         Executor exec) {
-        return runEvaluator("Rascal checkAll", compilerEvaluator,
+        return runEvaluator("Rascal checkAll", compilerEvaluators.get(pcfg.getBin()),
             e -> translateCheckResults((IList) e.call("checkAll", folder, pcfg.asConstructor())),
-            Collections.emptyMap(), exec, false);
+            Collections.emptyMap(), exec, false, JobPriority.INDEXING);
     }
 
     private static Map<ISourceLocation, ISet> translateCheckResults(IList messages) {
@@ -129,9 +166,9 @@ public class RascalLanguageServices {
     public InterruptibleFuture<Map<ISourceLocation, ISet>> compileFileList(IList files, PathConfig pcfg,
         Executor exec) {
         logger.debug("Running rascal check for: {} with: {}", files, pcfg);
-        return runEvaluator("Rascal check", compilerEvaluator,
+        return runEvaluator("Rascal check", compilerEvaluators.get(pcfg.getBin()),
             e -> translateCheckResults((IList) e.call("check", files, pcfg.asConstructor())),
-            buildEmptyResult(files), exec, false);
+            buildEmptyResult(files), exec, false, JobPriority.BACKGROUND_CHECK);
     }
 
 
@@ -159,13 +196,24 @@ public class RascalLanguageServices {
             });
         }
 
-        return runEvaluator("Rascal outline", outlineEvaluator, eval -> (IList) eval.call("outlineRascalModule", module),
-            VF.list(), exec, false);
+        return runEvaluator("Rascal outline", outlineEvaluators.get(loc), eval -> (IList) eval.call("outlineRascalModule", module),
+            VF.list(), exec, false, JobPriority.VISIBLE_DOCUMENT);
     }
 
 
     public CompletableFuture<ITree> parseSourceFile(ISourceLocation loc, String input) {
-        return CompletableFuture.supplyAsync(() -> parseContents(loc, input.toCharArray()), exec);
+        return parseCache.lookupOrParse(parserIdentity, loc, input,
+            () -> CompletableFuture.supplyAsync(() -> parseContents(loc, input.toCharArray()), exec));
+    }
+
+    /**
+     * Parse the new contents, reusing the tree of the previous contents if the change is local enough
+     */
+    public CompletableFuture<ITree> reparseSourceFile(ISourceLocation loc, String previousInput, ITree previousTree, String input) {
+        return parseCache.lookupOrParse(parserIdentity, loc, input, () -> CompletableFuture.supplyAsync(() -> {
+            ITree result = IncrementalReparser.reparse(loc, previousInput, previousTree, input);
+            return result != null ? result : parseContents(loc, input.toCharArray());
+        }, exec));
     }
 
     private ITree parseContents(ISourceLocation loc, char[] input) {
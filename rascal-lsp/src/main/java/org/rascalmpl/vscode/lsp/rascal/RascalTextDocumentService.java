@@ -28,6 +28,7 @@ package org.rascalmpl.vscode.lsp.rascal;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -36,6 +37,8 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -62,6 +65,7 @@ import org.eclipse.lsp4j.LocationLink;
 import org.eclipse.lsp4j.MarkupContent;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.ReferenceParams;
 import org.eclipse.lsp4j.SemanticTokens;
 import org.eclipse.lsp4j.SemanticTokensDelta;
 import org.eclipse.lsp4j.SemanticTokensDeltaParams;
@@ -69,9 +73,12 @@ import org.eclipse.lsp4j.SemanticTokensParams;
 import org.eclipse.lsp4j.SemanticTokensRangeParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.SymbolInformation;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.VersionedTextDocumentIdentifier;
+import org.eclipse.lsp4j.WorkspaceFolder;
 import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
@@ -80,10 +87,12 @@ import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageClientAware;
 import org.rascalmpl.parser.gtd.exception.ParseError;
 import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
 import org.rascalmpl.values.parsetrees.ITree;
 import org.rascalmpl.vscode.lsp.BaseWorkspaceService;
 import org.rascalmpl.vscode.lsp.IBaseLanguageClient;
 import org.rascalmpl.vscode.lsp.IBaseTextDocumentService;
+import org.rascalmpl.vscode.lsp.LSPIDEServices;
 import org.rascalmpl.vscode.lsp.TextDocumentState;
 import org.rascalmpl.vscode.lsp.rascal.RascalLanguageServices.CodeLensSuggestion;
 import org.rascalmpl.vscode.lsp.rascal.model.FileFacts;
@@ -142,7 +151,8 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
 
     public void initializeServerCapabilities(ServerCapabilities result) {
         result.setDefinitionProvider(true);
-        result.setTextDocumentSync(TextDocumentSyncKind.Full);
+        result.setReferencesProvider(true);
+        result.setTextDocumentSync(TextDocumentSyncKind.Incremental);
         result.setDocumentSymbolProvider(true);
         result.setHoverProvider(true);
         result.setSemanticTokensProvider(tokenizer.options());
@@ -163,19 +173,53 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
         facts.setClient(client);
     }
 
+    @Override
+    public void workspaceFoldersAdded(List<WorkspaceFolder> folders) {
+        if (facts == null || client == null) {
+            return;
+        }
+        // project:// locations might resolve to a different folder now
+        facts.clearResolvedLocations();
+        facts.indexWorkspace(toLocations(folders), new LSPIDEServices((IBaseLanguageClient) client, this, workspaceService, logger));
+    }
+
+    @Override
+    public void workspaceFoldersRemoved(List<WorkspaceFolder> folders) {
+        if (facts != null) {
+            facts.clearResolvedLocations();
+            facts.forgetWorkspace(toLocations(folders));
+        }
+    }
+
+    private static List<ISourceLocation> toLocations(List<WorkspaceFolder> folders) {
+        List<ISourceLocation> roots = new ArrayList<>(folders.size());
+        for (WorkspaceFolder folder : folders) {
+            try {
+                roots.add(URIUtil.createFromURI(folder.getUri()));
+            }
+            catch (URISyntaxException e) {
+                logger.error("Invalid workspace folder: {}", folder.getUri(), e);
+            }
+        }
+        return roots;
+    }
+
     // LSP interface methods
 
     @Override
     public void didOpen(DidOpenTextDocumentParams params) {
         logger.debug("Open file: {}", params.getTextDocument());
         TextDocumentState file = open(params.getTextDocument());
+        if (facts != null) {
+            facts.open(file.getLocation());
+        }
         handleParsingErrors(file);
     }
 
     @Override
     public void didChange(DidChangeTextDocumentParams params) {
         logger.trace("Change contents: {}", params.getTextDocument());
-        updateContents(params.getTextDocument(), last(params.getContentChanges()).getText());
+        updateContents(params.getTextDocument(), params.getContentChanges());
     }
 
     @Override
@@ -185,6 +229,11 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
             throw new ResponseErrorException(new ResponseError(ResponseErrorCode.InternalError,
                 "Unknown file: " + Locations.toLoc(params.getTextDocument()), params));
         }
+        tokenizer.forget(Locations.toLoc(params.getTextDocument()));
+        columns.clear(Locations.toLoc(params.getTextDocument()));
+        if (facts != null) {
+            facts.close(Locations.toLoc(params.getTextDocument()));
+        }
     }
 
     @Override
@@ -197,15 +246,26 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
         }
     }
 
-    private TextDocumentState updateContents(TextDocumentIdentifier doc, String newContents) {
+    private TextDocumentState updateContents(VersionedTextDocumentIdentifier doc, List<TextDocumentContentChangeEvent> changes) {
         TextDocumentState file = getFile(doc);
         logger.trace("New contents for {}", doc);
-        handleParsingErrors(file, file.update(newContents));
+        CompletableFuture<ITree> previous = file.getCurrentTreeAsync();
+        CompletableFuture<ITree> next = file.update(doc.getVersion(), changes);
+        columns.update(file.getLocation(), doc.getVersion(), changes, file::getCurrentLines);
+        if (next != previous) {
+            // during a burst of changes the same pending tree is returned, we only have to report errors once
+            handleParsingErrors(file, next);
+        }
         return file;
     }
 
     private void handleParsingErrors(TextDocumentState file, CompletableFuture<ITree> futureTree) {
         futureTree.handle((tree, excp) -> {
+            int version = file.getParsedVersion();
+            if (version != file.getCurrentVersion()) {
+                logger.trace("Dropping parse result of version {} for {}, a newer version is pending", version, file.getLocation());
+                return null;
+            }
             Diagnostic newParseError = null;
             if (excp != null && excp instanceof CompletionException) {
                 excp = excp.getCause();
@@ -224,7 +284,7 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
             logger.trace("Finished parsing tree, reporting new parse error: {} for: {}", newParseError, file.getLocation());
 
             if (facts != null) {
-                facts.reportParseErrors(file.getLocation(),
+                facts.reportParseErrors(file.getLocation(), version,
                     newParseError == null ? Collections.emptyList() : Collections.singletonList(newParseError));
             }
             return null;
@@ -251,13 +311,30 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
         }
     }
 
+    @Override
+    public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
+        logger.debug("References: {} at {}", params.getTextDocument(), params.getPosition());
+
+        if (facts != null) {
+            boolean includeDeclaration = params.getContext() != null && params.getContext().isIncludeDeclaration();
+            return facts.getReferences(Locations.toLoc(params.getTextDocument()), params.getPosition(), includeDeclaration)
+                .thenApply(l -> l) // hack to help compiler see type
+                ;
+        }
+        else {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+    }
+
     @Override
     public CompletableFuture<List<Either<SymbolInformation, DocumentSymbol>>>
         documentSymbol(DocumentSymbolParams params) {
         logger.debug("Outline/documentSymbols: {}", params.getTextDocument());
         TextDocumentState file = getFile(params.getTextDocument());
+        int version = file.getCurrentVersion();
         return file.getCurrentTreeAsync()
             .handle((t, r) -> (t == null ? (file.getMostRecentTree()) : t))
+            .thenApply(t -> file.ensureVersion(version, t))
             .thenCompose(tr -> rascalServices.getOutline(tr).get())
             .thenApply(c -> Outline.buildOutline(c, columns.get(file.getLocation())))
             ;
@@ -293,13 +370,13 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
 
     // Private utility methods
 
-    private static <T> T last(List<T> l) {
-        return l.get(l.size() - 1);
-    }
-
     private TextDocumentState open(TextDocumentItem doc) {
-        return documents.computeIfAbsent(Locations.toLoc(doc),
-            l -> new TextDocumentState((loc, input) -> rascalServices.parseSourceFile(loc, input), l, doc.getText()));
+        return documents.computeIfAbsent(Locations.toLoc(doc), l -> {
+            columns.open(l, doc.getVersion(), doc.getText());
+            return new TextDocumentState((loc, input) -> rascalServices.parseSourceFile(loc, input),
+                (loc, previousInput, previousTree, input) -> rascalServices.reparseSourceFile(loc, previousInput, previousTree, input),
+                l, doc.getVersion(), doc.getText());
+        });
     }
 
     private TextDocumentState getFile(TextDocumentIdentifier doc) {
@@ -318,35 +395,47 @@ public class RascalTextDocumentService implements IBaseTextDocumentService, Lang
         ownExecuter.shutdown();
     }
 
-    private CompletableFuture<SemanticTokens> getSemanticTokens(TextDocumentIdentifier doc) {
-        return getFile(doc).getCurrentTreeAsync()
-                .thenApplyAsync(tokenizer::semanticTokensFull, ownExecuter)
+    private <T> CompletableFuture<T> getSemanticTokens(TextDocumentIdentifier doc,
+        BiFunction<ISourceLocation, ITree, T> tokenize, Supplier<T> empty) {
+        TextDocumentState file = getFile(doc);
+        int version = file.getCurrentVersion();
+        return file.getCurrentTreeAsync()
+                .thenApply(t -> file.ensureVersion(version, t))
+                .thenApplyAsync(t -> tokenize.apply(file.getLocation(), t), ownExecuter)
                 .exceptionally(e -> {
+                    if (TextDocumentState.isContentModified(e)) {
+                        // let the client know it has to ask again
+                        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+                    }
                     logger.error("Tokenization failed", e);
-                    return new SemanticTokens(Collections.emptyList());
+                    return empty.get();
                 })
                 .whenComplete((r, e) ->
-                    logger.trace("Semantic tokens success, reporting {} tokens back", r == null ? 0 : r.getData().size())
+                    logger.trace("Semantic tokens success for {}", file.getLocation())
                 );
     }
 
     @Override
     public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
         logger.debug("semanticTokensFull: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument());
+        return getSemanticTokens(params.getTextDocument(), tokenizer::semanticTokensFull,
+            () -> new SemanticTokens(Collections.emptyList()));
     }
 
     @Override
     public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
             SemanticTokensDeltaParams params) {
-        logger.debug("semanticTokensFullDelta: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument()).thenApply(Either::forLeft);
+        logger.debug("semanticTokensFullDelta: {} from {}", params.getTextDocument(), params.getPreviousResultId());
+        return getSemanticTokens(params.getTextDocument(),
+            (loc, t) -> tokenizer.semanticTokensFullDelta(loc, params.getPreviousResultId(), t),
+            () -> Either.forLeft(new SemanticTokens(Collections.emptyList())));
     }
 
     @Override
     public CompletableFuture<SemanticTokens> semanticTokensRange(SemanticTokensRangeParams params) {
         logger.debug("semanticTokensRange: {}", params.getTextDocument());
-        return getSemanticTokens(params.getTextDocument());
+        return getSemanticTokens(params.getTextDocument(), (loc, t) -> tokenizer.semanticTokensRange(params.getRange(), t),
+            () -> new SemanticTokens(Collections.emptyList()));
     }
 
     @Override
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.rascal.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.rascalmpl.library.util.PathConfig;
+import org.rascalmpl.values.IRascalValueFactory;
+import org.rascalmpl.vscode.lsp.rascal.RascalLanguageServices;
+import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
+
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.IListWriter;
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+
+/**
+ * Collects the files that have to be type checked during a short window, and checks them with a single
+ * <code>compileFileList</code> per path config, such that a "save all" does not check the shared imports over and over again.
+ *
+ * Every scheduled file gets its own handle on the batch, interrupting that handle detaches the file.
+ * A batch is only interrupted when all its files have been detached (superseded by newer saves),
+ * and the results of such a batch are not reported. If only some files are detached, the batch
+ * still reports the results of the others.
+ */
+public class CheckScheduler {
+    private static final Logger logger = LogManager.getLogger(CheckScheduler.class);
+    /** milliseconds to wait for more saves before we start checking */
+    private static final long BATCH_WINDOW = Long.getLong("rascal.lsp.check.batchWindow", 200);
+
+    private final Compiler compiler;
+    private final Executor exec;
+    private final Executor delayedStart;
+    private final Consumer<Map<ISourceLocation, ISet>> reportResults;
+
+    // guarded by this
+    private final Map<PathConfig, Batch> pending = new HashMap<>();
+
+    /**
+     * Type checks a list of files that share a path config, like {@link RascalLanguageServices#compileFileList}
+     */
+    @FunctionalInterface
+    public interface Compiler {
+        InterruptibleFuture<Map<ISourceLocation, ISet>> compileFileList(IList files, PathConfig pcfg, Executor exec);
+    }
+
+    public CheckScheduler(RascalLanguageServices rascal, Executor exec, Consumer<Map<ISourceLocation, ISet>> reportResults) {
+        this(rascal::compileFileList, exec,
+            BATCH_WINDOW > 0 ? CompletableFuture.delayedExecutor(BATCH_WINDOW, TimeUnit.MILLISECONDS, exec) : exec,
+            reportResults);
+    }
+
+    /**
+     * @param delayedStart runs the check of a batch after the batching window
+     */
+    public CheckScheduler(Compiler compiler, Executor exec, Executor delayedStart, Consumer<Map<ISourceLocation, ISet>> reportResults) {
+        this.compiler = compiler;
+        this.exec = exec;
+        this.delayedStart = delayedStart;
+        this.reportResults = reportResults;
+    }
+
+    /**
+     * Schedule a check of the file, in the next batch of its path config
+     * @return the results of the batch the file ended up in (this also includes the results of the other files in the batch)
+     */
+    public synchronized InterruptibleFuture<Map<ISourceLocation, ISet>> schedule(ISourceLocation file, PathConfig pcfg) {
+        Batch batch = pending.get(pcfg);
+        if (batch == null) {
+            Batch newBatch = new Batch(pcfg);
+            pending.put(pcfg, newBatch);
+            delayedStart.execute(() -> start(newBatch));
+            batch = newBatch;
+        }
+        return batch.attach(file);
+    }
+
+    private void start(Batch batch) {
+        synchronized (this) {
+            pending.remove(batch.pcfg, batch);
+        }
+        batch.run();
+    }
+
+    private class Batch {
+        private final PathConfig pcfg;
+        private final CompletableFuture<Map<ISourceLocation, ISet>> result = new CompletableFuture<>();
+        // guarded by this
+        /** number of handles per file that are still attached */
+        private final Map<ISourceLocation, Integer> files = new LinkedHashMap<>();
+        /** files that were scheduled, but of which all handles have been detached */
+        private final Set<ISourceLocation> detachedFiles = new HashSet<>();
+        private int attached = 0;
+        private boolean cancelled = false;
+        private @Nullable InterruptibleFuture<Map<ISourceLocation, ISet>> running = null;
+
+        Batch(PathConfig pcfg) {
+            this.pcfg = pcfg;
+        }
+
+        synchronized InterruptibleFuture<Map<ISourceLocation, ISet>> attach(ISourceLocation file) {
+            files.merge(file, 1, Integer::sum);
+            detachedFiles.remove(file);
+            attached++;
+            cancelled = false; // the batch has not started yet, so it can be revived
+            AtomicBoolean detached = new AtomicBoolean(false);
+            return new InterruptibleFuture<>(result, () -> {
+                if (detached.compareAndSet(false, true)) {
+                    detach(file);
+                }
+            });
+        }
+
+        private void detach(ISourceLocation file) {
+            InterruptibleFuture<Map<ISourceLocation, ISet>> toInterrupt = null;
+            synchronized (this) {
+                attached--;
+                if (files.computeIfPresent(file, (f, n) -> n == 1 ? null : n - 1) == null) {
+                    detachedFiles.add(file);
+                }
+                if (attached == 0) {
+                    cancelled = true;
+                    toInterrupt = running;
+                    if (toInterrupt != null) {
+                        logger.debug("Interrupting superseded check of {}", detachedFiles);
+                    }
+                }
+            }
+            if (toInterrupt != null) {
+                toInterrupt.interrupt();
+            }
+        }
+
+        void run() {
+            InterruptibleFuture<Map<ISourceLocation, ISet>> check;
+            synchronized (this) {
+                if (cancelled) {
+                    result.complete(Collections.emptyMap());
+                    return;
+                }
+                IListWriter fileList = IRascalValueFactory.getInstance().listWriter();
+                // files that were detached before the start are not checked at all
+                fileList.appendAll(files.keySet());
+                check = compiler.compileFileList(fileList.done(), pcfg, exec);
+                running = check;
+            }
+            check.get().whenComplete((r, t) -> {
+                boolean report;
+                Set<ISourceLocation> superseded;
+                synchronized (this) {
+                    report = !cancelled;
+                    superseded = new HashSet<>(detachedFiles);
+                }
+                if (r != null && report) {
+                    reportResults.accept(withoutSuperseded(r, superseded));
+                }
+                if (t != null) {
+                    result.completeExceptionally(t);
+                }
+                else {
+                    result.complete(r);
+                }
+            });
+        }
+
+        /**
+         * The messages of detached files are dropped, the newer check that superseded them will report them
+         */
+        private Map<ISourceLocation, ISet> withoutSuperseded(Map<ISourceLocation, ISet> results, Set<ISourceLocation> superseded) {
+            if (superseded.isEmpty()) {
+                return results;
+            }
+            Map<ISourceLocation, ISet> filtered = new HashMap<>(results);
+            filtered.keySet().removeAll(superseded);
+            return filtered;
+        }
+    }
+}
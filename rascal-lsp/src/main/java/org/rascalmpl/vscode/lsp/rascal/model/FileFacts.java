@@ -27,73 +27,234 @@
 package org.rascalmpl.vscode.lsp.rascal.model;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.eclipse.lsp4j.services.LanguageClient;
+import org.rascalmpl.debug.IRascalMonitor;
+import org.rascalmpl.library.util.PathConfig;
 import org.rascalmpl.uri.URIResolverRegistry;
 import org.rascalmpl.vscode.lsp.rascal.RascalLanguageServices;
 import org.rascalmpl.vscode.lsp.util.Diagnostics;
+import org.rascalmpl.vscode.lsp.util.DiagnosticsPublisher;
+import org.rascalmpl.vscode.lsp.util.FactsCache;
+import org.rascalmpl.vscode.lsp.util.Lazy;
 import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
 import org.rascalmpl.vscode.lsp.util.concurrent.LazyUpdateableReference;
 import org.rascalmpl.vscode.lsp.util.concurrent.ReplaceableFuture;
 import org.rascalmpl.vscode.lsp.util.locations.ColumnMaps;
+import org.rascalmpl.vscode.lsp.util.locations.LineColumnOffsetMap;
+import org.rascalmpl.vscode.lsp.util.locations.Locations;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
+import io.usethesource.vallang.ISet;
 import io.usethesource.vallang.ISourceLocation;
 
 public class FileFacts {
     private static final Logger logger = LogManager.getLogger(FileFacts.class);
     private final Executor exec;
     private final RascalLanguageServices rascal;
-    private volatile @MonotonicNonNull LanguageClient client;
-    private final Map<ISourceLocation, FileFact> files = new ConcurrentHashMap<>();
+    /**
+     * Facts of files that are not open and have no diagnostics can be recalculated (or loaded from the store),
+     * so they are evicted when the estimated size of their summaries grows over a share of the heap.
+     * Pinned files (see {@link FileFact#weight()}) have weight 0, so the cache never evicts them.
+     */
+    private final FactsCache<ISourceLocation, FileFact> files = new FactsCache<>(FileFact::weight);
+    /** logical to physical translation of locations, on the hot path of every request */
+    private final Cache<ISourceLocation, ISourceLocation> resolvedLocations = Caffeine.newBuilder()
+        .maximumSize(10_000)
+        .expireAfterAccess(Duration.ofMinutes(10))
+        .build();
     private final ColumnMaps cm;
     private final PathConfigs confs;
+    private final SummaryStore store;
+    private final ReferenceIndex references = new ReferenceIndex();
+    private final CheckScheduler checks;
+    private final DiagnosticsPublisher diagnostics;
+    private final WorkspaceIndexer indexer;
 
     public FileFacts(Executor exec, RascalLanguageServices rascal, ColumnMaps cm) {
         this.exec = exec;
         this.rascal = rascal;
         this.cm = cm;
         this.confs = new PathConfigs();
+        this.store = new SummaryStore();
+        this.diagnostics = new DiagnosticsPublisher(exec);
+        this.checks = new CheckScheduler(rascal, exec, this::reportCheckResults);
+        this.indexer = new WorkspaceIndexer(rascal, exec, confs, store, references, this::reportCheckResults);
     }
 
     public void setClient(LanguageClient client) {
-        this.client = client;
+        diagnostics.setClient(client);
     }
 
     public void invalidate(ISourceLocation changedFile) {
         getFile(changedFile).invalidate();
     }
 
+    /**
+     * The document is opened in the editor, its facts are pinned until it is closed again
+     */
+    public void open(ISourceLocation file) {
+        FileFact fact = getFile(file);
+        fact.open = true;
+        reweigh(fact);
+    }
+
+    /**
+     * The document is closed in the editor, its facts can be evicted once it has no diagnostics anymore
+     */
+    public void close(ISourceLocation file) {
+        ISourceLocation resolved = resolve(file);
+        FileFact fact = files.getIfPresent(resolved);
+        if (fact != null) {
+            fact.open = false;
+            reweigh(fact);
+        }
+        diagnostics.forget(resolved.getURI().toString());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Facts after closing {}: {}", file, files.getFootprint());
+        }
+    }
+
+    /**
+     * Check the Rascal projects in these workspace folders in the background, if indexing is enabled.
+     */
+    public void indexWorkspace(List<ISourceLocation> folders, IRascalMonitor monitor) {
+        if (WorkspaceIndexer.ENABLED && !folders.isEmpty()) {
+            indexer.index(folders, monitor)
+                .exceptionally(t -> {
+                    logger.error("Indexing of {} failed", folders, t);
+                    return null;
+                });
+        }
+    }
+
+    /**
+     * The workspace folders are removed, forget the references into them, and withdraw the diagnostics
+     * of their files that are not open in the editor.
+     */
+    public void forgetWorkspace(List<ISourceLocation> folders) {
+        references.removeIf(module -> isInside(folders, resolve(module)));
+        for (FileFact fact : files.asMap().values()) {
+            if (!fact.open && isInside(folders, fact.file)) {
+                fact.withdrawDiagnostics();
+                files.asMap().remove(fact.file, fact);
+            }
+        }
+    }
+
+    private static boolean isInside(List<ISourceLocation> folders, ISourceLocation file) {
+        for (ISourceLocation folder : folders) {
+            if (WorkspaceIndexer.isInside(folder, file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public CompletableFuture<@Nullable SummaryBridge> getSummary(ISourceLocation file) {
         return getFile(file).getSummary();
     }
 
-    public void reportParseErrors(ISourceLocation file, List<Diagnostic> msgs) {
-        getFile(file).reportParseErrors(msgs);
+    /**
+     * Find the uses of the definition(s) under the cursor, in all modules of which we have seen a summary.
+     * The cursor can either be on a use, or on the definition itself.
+     */
+    public CompletableFuture<List<Location>> getReferences(ISourceLocation file, Position cursor, boolean includeDeclaration) {
+        return getSummary(file).thenApply(s -> {
+            Set<ISourceLocation> definitions = new LinkedHashSet<>();
+            if (s != null) {
+                definitions.addAll(s.getDefinitionLocations(cursor));
+            }
+            if (definitions.isEmpty()) {
+                definitions.addAll(definitionsAt(resolve(file), cursor));
+            }
+            List<Location> result = new ArrayList<>();
+            for (ISourceLocation def : definitions) {
+                if (includeDeclaration) {
+                    result.add(Locations.toLSPLocation(def, cm));
+                }
+                for (ISourceLocation use : references.getReferences(def)) {
+                    result.add(Locations.toLSPLocation(use, cm));
+                }
+            }
+            return result;
+        });
+    }
+
+    private List<ISourceLocation> definitionsAt(ISourceLocation file, Position cursor) {
+        long position = PackedPositions.pack(cursor);
+        LineColumnOffsetMap columns = cm.get(file);
+        List<ISourceLocation> result = new ArrayList<>(1);
+        for (ISourceLocation def : references.getDefinitionsIn(file)) {
+            if (Locations.hasPosition(def)
+                && Locations.toPackedPosition(def, columns, false) <= position
+                && position <= Locations.toPackedPosition(def, columns, true)) {
+                result.add(def);
+            }
+        }
+        return result;
+    }
+
+    public void reportParseErrors(ISourceLocation file, int version, List<Diagnostic> msgs) {
+        getFile(file).reportParseErrors(version, msgs);
+    }
+
+    private void reportCheckResults(Map<ISourceLocation, ISet> results) {
+        results.forEach((l, msgs) -> getFile(l).reportTypeCheckerErrors(Diagnostics.translateDiagnostics(l, msgs, cm)));
     }
 
     private FileFact getFile(ISourceLocation l) {
-        ISourceLocation resolved = null;
+        return files.get(resolve(l), l1 -> new FileFact(l1, exec));
+    }
+
+    /**
+     * Forget the cached physical locations, for example because the workspace folders (and thus the
+     * roots of <code>project://</code> locations) changed.
+     */
+    public void clearResolvedLocations() {
+        resolvedLocations.invalidateAll();
+    }
+
+    private ISourceLocation resolve(ISourceLocation l) {
+        ISourceLocation cached = resolvedLocations.getIfPresent(l);
+        if (cached != null) {
+            return cached;
+        }
         try {
-            resolved = URIResolverRegistry.getInstance().logicalToPhysical(l);
+            ISourceLocation resolved = URIResolverRegistry.getInstance().logicalToPhysical(l);
             if (resolved == null) {
                 resolved = l;
             }
+            resolvedLocations.put(l, resolved);
+            return resolved;
         } catch (IOException e) {
-            resolved = l;
+            // might be temporary (for example the VFS of the client), so we do not cache it
+            return l;
         }
-        return files.computeIfAbsent(resolved, l1 -> new FileFact(l1, exec));
+    }
+
+    /**
+     * The weight of a fact changes with its state, replacing it with itself makes the cache weigh it again
+     */
+    private void reweigh(FileFact fact) {
+        files.reweigh(fact.file, fact);
     }
 
     private class FileFact {
@@ -101,18 +262,47 @@ public class FileFacts {
         private final LazyUpdateableReference<InterruptibleFuture<@Nullable SummaryBridge>> summary;
         private volatile List<Diagnostic> parseMessages = Collections.emptyList();
         private volatile List<Diagnostic> typeCheckerMessages = Collections.emptyList();
-        private final ReplaceableFuture<Map<ISourceLocation, List<Diagnostic>>> typeCheckResults;
+        /** version of the document the parse messages belong to, if it was opened in the editor */
+        private volatile @Nullable Integer version = null;
+        /** opened in the editor, only set by {@link FileFacts#open} and {@link FileFacts#close} */
+        private volatile boolean open = false;
+        private volatile int summarySize = 0;
+        private final ReplaceableFuture<Map<ISourceLocation, ISet>> typeCheckResults;
+        /**
+         * summary from the persistent store, only used until the first summary of this session is calculated.
+         * Loading it reads and deserializes a file, so it runs on the executor instead of the request thread.
+         */
+        private final Lazy<CompletableFuture<Optional<SummaryBridge>>> storedSummary;
+        private volatile boolean useStoredSummary = true;
 
         public FileFact(ISourceLocation file, Executor exec) {
             this.file = file;
             this.typeCheckResults = new ReplaceableFuture<>(CompletableFuture.completedFuture(Collections.emptyMap()));
+            this.storedSummary = Lazy.defer(() -> CompletableFuture.supplyAsync(() ->
+                Optional.ofNullable(store.load(file, confs.lookupConfig(file))).map(s -> {
+                    if (!references.contains(file)) {
+                        references.update(file, SummaryBridge.getUseDef(s));
+                    }
+                    return summarized(new SummaryBridge(s, cm));
+                }), exec));
             this.summary = new LazyUpdateableReference<>(
                 new InterruptibleFuture<>(CompletableFuture.completedFuture(new SummaryBridge()), () -> {
                 }),
                 r -> {
                     r.interrupt();
-                    InterruptibleFuture<@Nullable SummaryBridge> summaryCalc = rascal.getSummary(file, confs.lookupConfig(file))
-                        .thenApply(s -> s == null ? null : new SummaryBridge(s, cm));
+                    PathConfig pcfg = confs.lookupConfig(file);
+                    // hash the source before the calculation, such that we never store a summary for newer contents
+                    CompletableFuture<@Nullable String> sourceHash = CompletableFuture.supplyAsync(() -> store.sourceHash(file), exec);
+                    InterruptibleFuture<@Nullable SummaryBridge> summaryCalc = rascal.getSummary(file, pcfg)
+                        .thenApply(s -> {
+                            if (s == null) {
+                                return null;
+                            }
+                            useStoredSummary = false;
+                            references.update(file, SummaryBridge.getUseDef(s));
+                            sourceHash.thenAcceptAsync(h -> store.store(file, pcfg, h, s), exec);
+                            return summarized(new SummaryBridge(s, cm));
+                        });
                     // only run get summary after the typechecker for this file is done running
                     // (we cannot now global running type checkers, that is a different subject)
                     CompletableFuture<@Nullable SummaryBridge> mergedCalc = typeCheckResults.get().thenCompose(o -> summaryCalc.get());
@@ -120,42 +310,71 @@ public class FileFacts {
                 });
         }
 
-        public void reportParseErrors(List<Diagnostic> msgs) {
+        private SummaryBridge summarized(SummaryBridge result) {
+            summarySize = result.estimatedSize();
+            reweigh(this);
+            return result;
+        }
+
+        /**
+         * Open documents, files with diagnostics, and files that are being checked are pinned (weight 0),
+         * the rest weighs as much as the summary we keep for them.
+         */
+        int weight() {
+            if (open || !parseMessages.isEmpty() || !typeCheckerMessages.isEmpty() || !typeCheckResults.get().isDone()) {
+                return 0;
+            }
+            return 1 + summarySize;
+        }
+
+        public void reportParseErrors(int version, List<Diagnostic> msgs) {
+            this.version = version;
             parseMessages = msgs;
+            reweigh(this);
             sendDiagnostics();
         }
         private void reportTypeCheckerErrors(List<Diagnostic> msgs) {
             typeCheckerMessages = msgs;
+            reweigh(this);
+            sendDiagnostics();
+        }
+
+        private void withdrawDiagnostics() {
+            parseMessages = Collections.emptyList();
+            typeCheckerMessages = Collections.emptyList();
             sendDiagnostics();
         }
 
         private void sendDiagnostics() {
-            if (client == null) {
-                logger.debug("Cannot send diagnostics since the client hasn't been registered yet");
-                return;
-            }
-            logger.trace("Sending diagnostics for: {}", file);
-            client.publishDiagnostics(new PublishDiagnosticsParams(
-                file.getURI().toString(),
-                union(typeCheckerMessages, parseMessages)));
+            String uri = file.getURI().toString();
+            diagnostics.publish(uri, () -> new PublishDiagnosticsParams(uri,
+                union(typeCheckerMessages, parseMessages), version));
         }
 
 
         public CompletableFuture<@Nullable SummaryBridge> getSummary() {
-            return summary.get().get();
+            CompletableFuture<@Nullable SummaryBridge> calculated = summary.get().get();
+            if (useStoredSummary && !calculated.isDone()) {
+                // while the (first) calculation is still running, we answer from the store
+                return storedSummary.get().thenCompose(stored -> stored.isPresent() && !calculated.isDone()
+                    ? CompletableFuture.completedFuture(stored.get())
+                    : calculated);
+            }
+            return calculated;
         }
 
         public void invalidate() {
+            useStoredSummary = false;
             summary.invalidate();
             typeCheckerMessages.clear();
-            this.typeCheckResults.replace(
-                rascal.compileFile(file, confs.lookupConfig(file), exec)
-                    .thenApply(m -> {
-                        Map<ISourceLocation, List<Diagnostic>> result = new HashMap<>(m.size());
-                        m.forEach((l, msgs) -> result.put(l, Diagnostics.translateDiagnostics(l, msgs, cm)));
-                        return result;
-                    })
-            ).thenAccept(m -> m.forEach((f, msgs) -> getFile(f).reportTypeCheckerErrors(msgs)));
+            // the scheduler reports the results of the whole batch, we only keep the future such that the summary waits for it
+            this.typeCheckResults.replace(checks.schedule(file, confs.lookupConfig(file)))
+                .whenComplete((r, t) -> reweigh(this));
+            reweigh(this);
+            if (references.contains(file)) {
+                // keep the reference index up to date, the summary is calculated after the type checker is done
+                getSummary();
+            }
         }
 
     }
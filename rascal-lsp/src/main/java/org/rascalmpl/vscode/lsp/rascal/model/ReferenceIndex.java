@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.rascal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.rascalmpl.vscode.lsp.util.locations.Locations;
+
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.ITuple;
+import io.usethesource.vallang.IValue;
+
+/**
+ * Workspace wide index from definitions to their uses, merged from the <code>useDef</code> relations of the module summaries.
+ *
+ * Every module has its own shard with the uses inside of it, grouped by definition. Next to that, we keep an
+ * inverted index from every definition to the modules that use it. Recalculating a module only replaces its
+ * own shard, and a lookup only visits the shards of the modules that refer to the definition.
+ */
+public class ReferenceIndex {
+    /** module -> definition -> uses in that module */
+    private final Map<ISourceLocation, Map<ISourceLocation, List<ISourceLocation>>> shards = new ConcurrentHashMap<>();
+    /** definition -> modules that use it */
+    private final Map<ISourceLocation, Set<ISourceLocation>> usedIn = new ConcurrentHashMap<>();
+    /** (physical) file -> definitions inside of it that are used somewhere */
+    private final Map<ISourceLocation, Set<ISourceLocation>> definedIn = new ConcurrentHashMap<>();
+
+    /**
+     * Replace the shard of a module with the uses from its (new) <code>useDef</code> relation
+     */
+    public synchronized void update(ISourceLocation module, ISet useDef) {
+        Map<ISourceLocation, List<ISourceLocation>> shard = new HashMap<>();
+        for (IValue v : useDef) {
+            ITuple row = (ITuple) v;
+            shard.computeIfAbsent((ISourceLocation) row.get(1), d -> new ArrayList<>(1)).add((ISourceLocation) row.get(0));
+        }
+        Map<ISourceLocation, List<ISourceLocation>> old = shards.put(module, shard);
+        if (old != null) {
+            for (ISourceLocation def : old.keySet()) {
+                if (!shard.containsKey(def)) {
+                    removeUse(def, module);
+                }
+            }
+        }
+        Map<ISourceLocation, ISourceLocation> physicalFiles = new HashMap<>();
+        for (ISourceLocation def : shard.keySet()) {
+            if (old == null || !old.containsKey(def)) {
+                usedIn.computeIfAbsent(def, d -> ConcurrentHashMap.newKeySet()).add(module);
+                ISourceLocation file = physicalFiles.computeIfAbsent(def.top(), Locations::toPhysicalIfPossible);
+                definedIn.computeIfAbsent(file, f -> ConcurrentHashMap.newKeySet()).add(def);
+            }
+        }
+    }
+
+    public synchronized void remove(ISourceLocation module) {
+        Map<ISourceLocation, List<ISourceLocation>> old = shards.remove(module);
+        if (old != null) {
+            old.keySet().forEach(def -> removeUse(def, module));
+        }
+    }
+
+    /**
+     * Remove the shards of all modules that match, for example because their project left the workspace
+     */
+    public synchronized void removeIf(Predicate<ISourceLocation> module) {
+        for (ISourceLocation m : new ArrayList<>(shards.keySet())) {
+            if (module.test(m)) {
+                remove(m);
+            }
+        }
+    }
+
+    private void removeUse(ISourceLocation def, ISourceLocation module) {
+        Set<ISourceLocation> modules = usedIn.get(def);
+        if (modules != null) {
+            modules.remove(module);
+            if (modules.isEmpty()) {
+                usedIn.remove(def);
+                Set<ISourceLocation> defs = definedIn.get(Locations.toPhysicalIfPossible(def.top()));
+                if (defs != null) {
+                    defs.remove(def);
+                }
+            }
+        }
+    }
+
+    public boolean contains(ISourceLocation module) {
+        return shards.containsKey(module);
+    }
+
+    /**
+     * @return all known uses of the definition, in every indexed module
+     */
+    public List<ISourceLocation> getReferences(ISourceLocation definition) {
+        Set<ISourceLocation> modules = usedIn.get(definition);
+        if (modules == null) {
+            return Collections.emptyList();
+        }
+        List<ISourceLocation> result = new ArrayList<>();
+        for (ISourceLocation module : modules) {
+            Map<ISourceLocation, List<ISourceLocation>> shard = shards.get(module);
+            if (shard != null) {
+                result.addAll(shard.getOrDefault(definition, Collections.emptyList()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the definitions inside of the (physical) file that are used somewhere
+     */
+    public Set<ISourceLocation> getDefinitionsIn(ISourceLocation file) {
+        return definedIn.getOrDefault(file, Collections.emptySet());
+    }
+}
@@ -41,6 +41,8 @@ import org.rascalmpl.vscode.lsp.util.Lazy;
 import org.rascalmpl.vscode.lsp.util.locations.ColumnMaps;
 import org.rascalmpl.vscode.lsp.util.locations.IRangeMap;
 import org.rascalmpl.vscode.lsp.util.locations.Locations;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
+import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayRangeMap;
 import org.rascalmpl.vscode.lsp.util.locations.impl.TreeMapLookup;
 
 import io.usethesource.vallang.IConstructor;
@@ -68,55 +70,77 @@ public class SummaryBridge {
     }
 
     private final IWithKeywordParameters<? extends IConstructor> data;
-    private final Lazy<IRangeMap<List<Location>>> definitions;
+    /** the definitions are only translated to LSP locations when they are asked for */
+    private final Lazy<IRangeMap<List<ISourceLocation>>> definitions;
     private final Lazy<IRangeMap<String>> typeNames;
+    private final @Nullable ColumnMaps cm;
 
 
     public SummaryBridge() {
         this.data = EMPTY_SUMMARY.asWithKeywordParameters();
-        this.definitions = TreeMapLookup::new;
-        this.typeNames = TreeMapLookup::new;
+        this.definitions = TreeMapLookup::emptyMap;
+        this.typeNames = TreeMapLookup::emptyMap;
+        this.cm = null;
     }
 
     public SummaryBridge(IConstructor summary, ColumnMaps cm) {
         this.data = summary.asWithKeywordParameters();
-        definitions = Lazy.defer(() -> translateRelation(getKWFieldSet(data, "useDef"), v -> Locations.toLSPLocation((ISourceLocation)v, cm), cm));
+        this.cm = cm;
+        definitions = Lazy.defer(() -> translateRelation(getKWFieldSet(data, "useDef"), ISourceLocation.class::cast, cm));
         typeNames = Lazy.defer(() -> translateMap(getKWFieldMap(data, "locationTypes"), v -> ((IString)v).getValue(), cm));
 
     }
 
+    /**
+     * @return a summary that only contains the parts the bridge uses, for summaries that were stored by {@link SummaryStore}
+     */
+    static IConstructor summary(ISet useDef, IMap locationTypes) {
+        return EMPTY_SUMMARY.asWithKeywordParameters()
+            .setParameter("useDef", useDef)
+            .asWithKeywordParameters()
+            .setParameter("locationTypes", locationTypes);
+    }
+
+    /**
+     * @return a rough measure of the memory this summary takes, the number of locations it maps
+     */
+    int estimatedSize() {
+        return getKWFieldSet(data, "useDef").size() + getKWFieldMap(data, "locationTypes").size();
+    }
+
+    static ISet getUseDef(IConstructor summary) {
+        return getKWFieldSet(summary.asWithKeywordParameters(), "useDef");
+    }
+
+    static IMap getLocationTypes(IConstructor summary) {
+        return getKWFieldMap(summary.asWithKeywordParameters(), "locationTypes");
+    }
+
     private static <T> IRangeMap<List<T>> translateRelation(ISet binaryRel, Function<IValue, T> valueMapper, ColumnMaps cm) {
-        TreeMapLookup<List<T>> result = new TreeMapLookup<>();
+        ArrayRangeMap.Builder<List<T>> result = ArrayRangeMap.builder();
         for (IValue v: binaryRel) {
             ITuple row = (ITuple)v;
-            Range from = Locations.toRange((ISourceLocation)row.get(0), cm);
-            T to = valueMapper.apply(row.get(1));
-            List<T> existing = result.getExact(from);
-            if (existing == null) {
-                // most cases there is only a single entry, to so save a lot of memory, we store a singleton list to start with
-                result.put(from, Collections.singletonList(to));
-            }
-            else if (existing.size() == 1) {
-                // we had a singleton list in there, so let's replace it with a regular last
-                existing = new ArrayList<>(existing);
-                result.put(from, existing);
-                existing.add(to);
-            }
-            else {
-                existing.add(to);
-            }
+            // most cases there is only a single entry, to so save a lot of memory, we store a singleton list to start with
+            Locations.putRange(result, (ISourceLocation)row.get(0), cm, Collections.singletonList(valueMapper.apply(row.get(1))));
         }
-        return result;
+        return result.build(SummaryBridge::mergeLists);
+    }
+
+    private static <T> List<T> mergeLists(List<T> existing, List<T> extra) {
+        if (existing.size() == 1) {
+            // we had a singleton list in there, so let's replace it with a regular list
+            existing = new ArrayList<>(existing);
+        }
+        existing.addAll(extra);
+        return existing;
     }
 
     private static <T> IRangeMap<T> translateMap(IMap binaryMap, Function<IValue, T> valueMapper, ColumnMaps cm) {
-        TreeMapLookup<T> result = new TreeMapLookup<>();
-        binaryMap.entryIterator().forEachRemaining(e -> {
-            Range from = Locations.toRange((ISourceLocation)e.getKey(), cm);
-            T to = valueMapper.apply(e.getValue());
-            result.put(from, to);
-        });
-        return result;
+        ArrayRangeMap.Builder<T> result = ArrayRangeMap.builder();
+        binaryMap.entryIterator().forEachRemaining(e ->
+            Locations.putRange(result, (ISourceLocation)e.getKey(), cm, valueMapper.apply(e.getValue()))
+        );
+        return result.build();
     }
 
     private static ISet getKWFieldSet(IWithKeywordParameters<? extends IConstructor> data, String name) {
@@ -141,15 +165,37 @@ public class SummaryBridge {
     }
 
     public List<Location> getDefinition(Position cursor) {
-        return getDefinition(new Range(cursor, cursor));
+        return toLSPLocations(definitions.get().lookup(PackedPositions.pack(cursor)));
     }
 
     public List<Location> getDefinition(Range cursor) {
-        return replaceNull(definitions.get().lookup(cursor), Collections.emptyList());
+        return toLSPLocations(definitions.get().lookup(cursor));
+    }
+
+    /**
+     * @return the definitions of the symbol under the cursor, without translating them to LSP locations
+     */
+    public List<ISourceLocation> getDefinitionLocations(Position cursor) {
+        return replaceNull(definitions.get().lookup(PackedPositions.pack(cursor)), Collections.emptyList());
+    }
+
+    private List<Location> toLSPLocations(@Nullable List<ISourceLocation> locs) {
+        ColumnMaps columns = cm;
+        if (locs == null || columns == null) {
+            return Collections.emptyList();
+        }
+        if (locs.size() == 1) {
+            return Collections.singletonList(Locations.toLSPLocation(locs.get(0), columns));
+        }
+        List<Location> result = new ArrayList<>(locs.size());
+        for (ISourceLocation l : locs) {
+            result.add(Locations.toLSPLocation(l, columns));
+        }
+        return result;
     }
 
     public String getTypeName(Position cursor) {
-        return getTypeName(new Range(cursor, cursor));
+        return replaceNull(typeNames.get().lookup(PackedPositions.pack(cursor)), "");
     }
 
     public String getTypeName(Range cursor) {
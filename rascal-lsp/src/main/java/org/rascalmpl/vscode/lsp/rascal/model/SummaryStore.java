@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.rascal.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.rascalmpl.library.util.PathConfig;
+import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.IRascalValueFactory;
+
+import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IMap;
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IString;
+import io.usethesource.vallang.ITuple;
+import io.usethesource.vallang.IValue;
+import io.usethesource.vallang.io.binary.stream.IValueInputStream;
+import io.usethesource.vallang.io.binary.stream.IValueOutputStream;
+import io.usethesource.vallang.type.TypeStore;
+
+/**
+ * Persistent store of the parts of a module summary that navigation needs (<code>useDef</code> and <code>locationTypes</code>).
+ *
+ * After a restart it takes a long time before the summary evaluator is loaded, in the mean time
+ * hover and jump-to-definition are answered from this store. Entries are written to the bin folder
+ * of the project, per module, and only used if the hash of the source file on disk still matches.
+ */
+public class SummaryStore {
+    private static final Logger logger = LogManager.getLogger(SummaryStore.class);
+    private static final boolean ENABLED = !Boolean.getBoolean("rascal.lsp.summaryStore.disabled");
+    private static final String STORE_FOLDER = "lsp-summaries";
+    private static final String EXTENSION = ".summary";
+
+    private final URIResolverRegistry reg = URIResolverRegistry.getInstance();
+    private final IRascalValueFactory vf = IRascalValueFactory.getInstance();
+
+    /**
+     * @return the hash of the current contents of the file on disk, to be taken before the summary is calculated
+     */
+    public @Nullable String sourceHash(ISourceLocation file) {
+        if (!ENABLED) {
+            return null;
+        }
+        try (Reader src = reg.getCharacterReader(file)) {
+            return Hashing.murmur3_128().hashUnencodedChars(CharStreams.toString(src)).toString();
+        }
+        catch (IOException e) {
+            logger.debug("Cannot hash {} for the summary store", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the stored summary of the file, if there is one for the current contents
+     */
+    public @Nullable IConstructor load(ISourceLocation file, PathConfig pcfg) {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            ISourceLocation entry = entryLocation(file, pcfg);
+            if (!reg.exists(entry)) {
+                return null;
+            }
+            String hash = sourceHash(file);
+            try (InputStream stream = reg.getInputStream(entry);
+                IValueInputStream in = new IValueInputStream(stream, vf, TypeStore::new)) {
+                ITuple stored = (ITuple) in.read();
+                if (hash == null || !hash.equals(((IString) stored.get(0)).getValue())) {
+                    logger.trace("Stored summary of {} is outdated", file);
+                    return null;
+                }
+                logger.trace("Loaded stored summary of {}", file);
+                return SummaryBridge.summary((ISet) stored.get(1), (IMap) stored.get(2));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // the store is just a cache, a broken or incompatible entry is the same as a missing one
+            logger.debug("Cannot load stored summary of {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the summary of the file, for the contents with the given hash
+     */
+    public void store(ISourceLocation file, PathConfig pcfg, @Nullable String hash, IConstructor summary) {
+        if (!ENABLED || hash == null) {
+            return;
+        }
+        try {
+            ISourceLocation entry = entryLocation(file, pcfg);
+            reg.mkDirectory(URIUtil.getParentLocation(entry));
+            IValue stored = vf.tuple(vf.string(hash), SummaryBridge.getUseDef(summary), SummaryBridge.getLocationTypes(summary));
+            try (OutputStream stream = reg.getOutputStream(entry, false);
+                IValueOutputStream out = new IValueOutputStream(stream, vf)) {
+                out.write(stored);
+            }
+            logger.trace("Stored summary of {} in {}", file, entry);
+        }
+        catch (IOException | RuntimeException e) {
+            logger.debug("Cannot store summary of {}", file, e);
+        }
+    }
+
+    private static ISourceLocation entryLocation(ISourceLocation file, PathConfig pcfg) throws IOException {
+        String moduleName = pcfg.getModuleName(file);
+        return URIUtil.getChildLocation(pcfg.getBin(), STORE_FOLDER + "/" + moduleName.replace("::", "/") + EXTENSION);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.rascal.model;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.rascalmpl.debug.IRascalMonitor;
+import org.rascalmpl.library.util.PathConfig;
+import org.rascalmpl.uri.URIResolverRegistry;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.vscode.lsp.rascal.RascalLanguageServices;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
+
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IValue;
+
+/**
+ * Checks all Rascal projects of the workspace in the background, such that diagnostics, summaries
+ * and references are available for files that have not been opened (or saved) in this session.
+ *
+ * Indexing is opt-in (<code>-Drascal.lsp.index=true</code>). Projects are checked in dependency order,
+ * at most <code>rascal.lsp.index.maxConcurrent</code> (default 1) at the same time. All evaluator jobs run with
+ * {@link JobPriority#INDEXING}, so they step aside for anything the user is waiting for.
+ *
+ * The work is chained with futures, no executor thread is blocked while waiting for a dependency,
+ * a free slot or a summary.
+ */
+class WorkspaceIndexer {
+    private static final Logger logger = LogManager.getLogger(WorkspaceIndexer.class);
+    static final boolean ENABLED = Boolean.getBoolean("rascal.lsp.index");
+    private static final int MAX_CONCURRENT = Math.max(1, Integer.getInteger("rascal.lsp.index.maxConcurrent", 1));
+    private static final String JOB = "Indexing Rascal projects";
+
+    private final RascalLanguageServices rascal;
+    private final Executor exec;
+    private final PathConfigs confs;
+    private final SummaryStore store;
+    private final ReferenceIndex references;
+    private final Consumer<Map<ISourceLocation, ISet>> reportCheckResults;
+    private final Permits running = new Permits(MAX_CONCURRENT);
+
+    WorkspaceIndexer(RascalLanguageServices rascal, Executor exec, PathConfigs confs, SummaryStore store,
+        ReferenceIndex references, Consumer<Map<ISourceLocation, ISet>> reportCheckResults) {
+        this.rascal = rascal;
+        this.exec = exec;
+        this.confs = confs;
+        this.store = store;
+        this.references = references;
+        this.reportCheckResults = reportCheckResults;
+    }
+
+    private static final class Project {
+        private final ISourceLocation root;
+        private final PathConfig pcfg;
+        private final List<Project> dependencies = new ArrayList<>();
+
+        Project(ISourceLocation root, PathConfig pcfg) {
+            this.root = root;
+            this.pcfg = pcfg;
+        }
+
+        boolean dependsOn(Project other) {
+            String otherName = URIUtil.getLocationName(other.root);
+            for (IValue l : pcfg.getLibs()) {
+                ISourceLocation lib = (ISourceLocation) l;
+                if (lib.equals(other.pcfg.getBin()) || isInside(other.root, lib)
+                    || ("lib".equals(lib.getScheme()) && otherName.equals(lib.getAuthority()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Index the Rascal projects in (or directly below) the workspace folders.
+     */
+    CompletableFuture<Void> index(List<ISourceLocation> folders, IRascalMonitor monitor) {
+        return CompletableFuture.supplyAsync(() -> sortByDependencies(findProjects(folders)), exec)
+            .thenCompose(projects -> {
+                if (projects.isEmpty()) {
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                synchronized (monitor) {
+                    monitor.jobStart(JOB, 1, projects.size());
+                }
+                Map<Project, CompletableFuture<Void>> done = new HashMap<>();
+                for (Project p : projects) {
+                    // dependencies are earlier in the list, and have to be checked before we can start
+                    CompletableFuture<Void> project = CompletableFuture.allOf(p.dependencies.stream()
+                        .map(done::get)
+                        .toArray(CompletableFuture[]::new))
+                        .exceptionally(t -> null)
+                        .thenCompose(v -> running.acquire())
+                        .thenCompose(v -> {
+                            synchronized (monitor) {
+                                monitor.jobStep(JOB, "Checking " + URIUtil.getLocationName(p.root), 1);
+                            }
+                            return indexProject(p);
+                        })
+                        .whenComplete((r, t) -> running.release());
+                    done.put(p, project);
+                }
+                return CompletableFuture.allOf(done.values().toArray(CompletableFuture[]::new))
+                    .whenComplete((r, t) -> {
+                        synchronized (monitor) {
+                            monitor.jobEnd(JOB, t == null);
+                        }
+                    });
+            });
+    }
+
+    /**
+     * A semaphore that hands out its permits as futures, instead of blocking the thread that asks for one
+     */
+    private static final class Permits {
+        private int available;
+        private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+        Permits(int permits) {
+            this.available = permits;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (available > 0) {
+                available--;
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            waiting.add(result);
+            return result;
+        }
+
+        void release() {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            // the permit is handed over directly, outside of the lock since this runs the next project
+            next.complete(null);
+        }
+    }
+
+    private List<Project> findProjects(List<ISourceLocation> folders) {
+        URIResolverRegistry reg = URIResolverRegistry.getInstance();
+        List<Project> result = new ArrayList<>();
+        for (ISourceLocation folder : folders) {
+            List<ISourceLocation> candidates = new ArrayList<>();
+            candidates.add(folder);
+            try {
+                for (ISourceLocation child : reg.list(folder)) {
+                    if (reg.isDirectory(child)) {
+                        candidates.add(child);
+                    }
+                }
+            }
+            catch (IOException e) {
+                logger.debug("Cannot list workspace folder {}", folder, e);
+            }
+            for (ISourceLocation candidate : candidates) {
+                if (reg.exists(URIUtil.getChildLocation(candidate, "META-INF/RASCAL.MF"))) {
+                    result.add(new Project(candidate, confs.lookupConfig(candidate)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Project> sortByDependencies(List<Project> projects) {
+        for (Project p : projects) {
+            for (Project other : projects) {
+                if (p != other && p.dependsOn(other)) {
+                    p.dependencies.add(other);
+                }
+            }
+        }
+        // depth first, cycles are broken at the first project we visit twice
+        Set<Project> sorted = new LinkedHashSet<>();
+        for (Project p : projects) {
+            visit(p, sorted, new HashSet<>());
+        }
+        List<Project> result = new ArrayList<>(sorted);
+        for (Project p : result) {
+            // forget the edges that were dropped to break a cycle
+            p.dependencies.removeIf(d -> result.indexOf(d) > result.indexOf(p));
+        }
+        return result;
+    }
+
+    private static void visit(Project p, Set<Project> sorted, Set<Project> onPath) {
+        if (sorted.contains(p) || !onPath.add(p)) {
+            return;
+        }
+        for (Project d : p.dependencies) {
+            visit(d, sorted, onPath);
+        }
+        sorted.add(p);
+    }
+
+    private CompletableFuture<Void> indexProject(Project p) {
+        List<CompletableFuture<Void>> checks = new ArrayList<>();
+        for (IValue s : p.pcfg.getSrcs()) {
+            ISourceLocation src = (ISourceLocation) s;
+            if (!isInside(p.root, src)) {
+                // the standard library and such are not part of the workspace
+                continue;
+            }
+            logger.debug("Indexing {}", src);
+            checks.add(rascal.compileFolder(src, p.pcfg, exec).get()
+                .thenComposeAsync(results -> {
+                    reportCheckResults.accept(results);
+                    return indexSummaries(results.keySet(), p.pcfg);
+                }, exec));
+        }
+        return CompletableFuture.allOf(checks.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Summarize the modules one after the other, such that indexing never occupies more than one summary evaluator
+     */
+    private CompletableFuture<Void> indexSummaries(Set<ISourceLocation> modules, PathConfig pcfg) {
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+        for (ISourceLocation module : modules) {
+            result = result.thenCompose(v -> indexSummary(module, pcfg));
+        }
+        return result;
+    }
+
+    private CompletableFuture<Void> indexSummary(ISourceLocation module, PathConfig pcfg) {
+        if (references.contains(module)) {
+            // already summarized in this session
+            return CompletableFuture.<Void>completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> store.load(module, pcfg), exec)
+            .thenCompose(stored -> {
+                if (stored != null) {
+                    references.update(module, SummaryBridge.getUseDef(stored));
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                String hash = store.sourceHash(module);
+                return rascal.getSummary(module, pcfg, JobPriority.INDEXING).get()
+                    .thenAcceptAsync(summary -> {
+                        if (summary != null) {
+                            references.update(module, SummaryBridge.getUseDef(summary));
+                            store.store(module, pcfg, hash, summary);
+                        }
+                    }, exec);
+            });
+    }
+
+    static boolean isInside(ISourceLocation folder, ISourceLocation member) {
+        return folder.getScheme().equals(member.getScheme())
+            && folder.getAuthority().equals(member.getAuthority())
+            && (member.getPath() + "/").startsWith(folder.getPath().endsWith("/") ? folder.getPath() : folder.getPath() + "/");
+    }
+}
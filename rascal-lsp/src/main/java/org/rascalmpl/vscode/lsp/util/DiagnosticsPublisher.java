@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.services.LanguageClient;
+
+/**
+ * Sends diagnostics to the client, but not on every change.
+ *
+ * Updates for the same file within a short window (<code>rascal.lsp.diagnostics.window</code>, default 50ms)
+ * are merged into one, and only the newest list is calculated. A list that is equal to the one we sent last
+ * time for that file is not sent again. On top of that, at most <code>rascal.lsp.diagnostics.maxPerSecond</code>
+ * (default 50) notifications are sent per second, the rest waits for the next second.
+ */
+public class DiagnosticsPublisher {
+    private static final Logger logger = LogManager.getLogger(DiagnosticsPublisher.class);
+    private static final long WINDOW = Long.getLong("rascal.lsp.diagnostics.window", 50);
+    private static final int MAX_PER_SECOND = Math.max(1, Integer.getInteger("rascal.lsp.diagnostics.maxPerSecond", 50));
+    private static final long REPORT_EVERY = 1000;
+
+    private final Executor delayed;
+    private final Executor nextSecond;
+    private volatile @MonotonicNonNull LanguageClient client;
+
+    /** newest diagnostics per uri, that have not been sent yet */
+    private final Map<String, Supplier<PublishDiagnosticsParams>> pending = new ConcurrentHashMap<>();
+    /** the last diagnostics we sent per uri */
+    private final Map<String, List<Diagnostic>> sent = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private long currentSecond = 0;
+    private int sentThisSecond = 0;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    public DiagnosticsPublisher(Executor exec) {
+        this(CompletableFuture.delayedExecutor(WINDOW, TimeUnit.MILLISECONDS, exec),
+            CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS, exec));
+    }
+
+    /**
+     * @param delayed runs the flush of a file after the window
+     * @param nextSecond runs the flush of a file that hit the rate limit, in the next second
+     */
+    public DiagnosticsPublisher(Executor delayed, Executor nextSecond) {
+        this.delayed = delayed;
+        this.nextSecond = nextSecond;
+    }
+
+    public void setClient(LanguageClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Schedule the diagnostics of a file for publishing. The diagnostics are only calculated when the window
+     * has passed, and only if no newer diagnostics were scheduled for the file in the mean time.
+     */
+    public void publish(String uri, Supplier<PublishDiagnosticsParams> diagnostics) {
+        if (pending.put(uri, diagnostics) != null) {
+            // the scheduled flush will pick up our version
+            coalescedCount.incrementAndGet();
+            return;
+        }
+        delayed.execute(() -> flush(uri));
+    }
+
+    /**
+     * Forget what we have sent for this file, for example because it is closed
+     */
+    public void forget(String uri) {
+        sent.remove(uri);
+    }
+
+    private void flush(String uri) {
+        LanguageClient actualClient = client;
+        if (actualClient == null) {
+            logger.debug("Cannot send diagnostics since the client hasn't been registered yet");
+            pending.remove(uri);
+            return;
+        }
+        Supplier<PublishDiagnosticsParams> newest = pending.remove(uri);
+        if (newest == null) {
+            return;
+        }
+        PublishDiagnosticsParams params = newest.get();
+        List<Diagnostic> diagnostics = params.getDiagnostics();
+        if (diagnostics.equals(sent.get(uri))) {
+            suppressedCount.incrementAndGet();
+            return;
+        }
+        if (!acquirePermit()) {
+            // unless there is something newer already, try again in the next second
+            if (pending.putIfAbsent(uri, () -> params) == null) {
+                nextSecond.execute(() -> flush(uri));
+            }
+            return;
+        }
+        sent.put(uri, diagnostics);
+        logger.trace("Sending diagnostics for {}. {} messages", uri, params.getDiagnostics().size());
+        actualClient.publishDiagnostics(params);
+        if (sentCount.incrementAndGet() % REPORT_EVERY == 0) {
+            logger.debug("Diagnostics: {} sent, {} coalesced, {} suppressed as duplicates",
+                sentCount.get(), coalescedCount.get(), suppressedCount.get());
+        }
+    }
+
+    private synchronized boolean acquirePermit() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        if (second != currentSecond) {
+            currentSecond = second;
+            sentThisSecond = 0;
+        }
+        if (sentThisSecond >= MAX_PER_SECOND) {
+            return false;
+        }
+        sentThisSecond++;
+        return true;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.rascalmpl.interpreter.Evaluator;
+
+/**
+ * A pool of evaluators that all have the same role (and imports).
+ *
+ * {@link EvaluatorUtil#runEvaluator} runs one job at a time per evaluator, so a single evaluator per role makes all
+ * work of that kind strictly serial. The pool dispatches a job to an evaluator based on an affinity key,
+ * for example the project of the module, such that the same project always ends up at the same evaluator
+ * (keeping its module caches warm, and never checking the same project twice in parallel), while
+ * independent projects can run in parallel.
+ *
+ * Evaluators are created on first use of their slot, as long as the heap usage stays below a ceiling.
+ * If we are above the ceiling, new keys share one of the existing evaluators.
+ */
+public class EvaluatorPool {
+    private static final Logger logger = LogManager.getLogger(EvaluatorPool.class);
+    private static final double MAX_HEAP_FRACTION = Double.parseDouble(System.getProperty("rascal.lsp.evaluatorPool.maxHeapFraction", "0.6"));
+
+    private final String label;
+    private final IntFunction<CompletableFuture<Evaluator>> factory;
+    private final AtomicReferenceArray<@Nullable CompletableFuture<Evaluator>> slots;
+    /**
+     * once a key is assigned to an evaluator, it stays there while it is in use. Keys can be as fine-grained
+     * as a single file, so keys that have not been used for a while are forgotten, and get a slot again on their next use.
+     */
+    private final Cache<Object, Integer> assigned = Caffeine.newBuilder()
+        .maximumSize(10_000)
+        .expireAfterAccess(Duration.ofMinutes(10))
+        .build();
+
+    /**
+     * @param factory creates the evaluator for a slot, only called once per slot, slot 0 is created right away
+     */
+    public EvaluatorPool(String label, int size, IntFunction<CompletableFuture<Evaluator>> factory) {
+        this.label = label;
+        this.factory = factory;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, size));
+        slot(0);
+    }
+
+    /**
+     * The size of a pool for a role can be configured with <code>-Drascal.lsp.evaluatorPool.&lt;role&gt;=N</code>,
+     * by default we use one evaluator per 8 cores, with a maximum of 4.
+     */
+    public static int configuredSize(String role) {
+        int fallback = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 8));
+        return Math.max(1, Integer.getInteger("rascal.lsp.evaluatorPool." + role, fallback));
+    }
+
+    /**
+     * @return the evaluator for jobs with this affinity key
+     */
+    public CompletableFuture<Evaluator> get(Object affinity) {
+        if (slots.length() == 1) {
+            return slot(0);
+        }
+        int index = assigned.get(affinity, this::chooseSlot);
+        return slot(index);
+    }
+
+    private int chooseSlot(Object affinity) {
+        int preferred = Math.floorMod(affinity.hashCode(), slots.length());
+        if (slots.get(preferred) != null || belowHeapCeiling()) {
+            return preferred;
+        }
+        // share the closest existing evaluator
+        for (int i = 1; i < slots.length(); i++) {
+            int candidate = Math.floorMod(preferred - i, slots.length());
+            if (slots.get(candidate) != null) {
+                return candidate;
+            }
+        }
+        return 0;
+    }
+
+    private CompletableFuture<Evaluator> slot(int index) {
+        CompletableFuture<Evaluator> result = slots.get(index);
+        if (result == null) {
+            synchronized (slots) {
+                result = slots.get(index);
+                if (result == null) {
+                    logger.debug("Starting evaluator {} of {}", index, label);
+                    result = factory.apply(index);
+                    slots.set(index, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean belowHeapCeiling() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        return used < rt.maxMemory() * MAX_HEAP_FRACTION;
+    }
+}
@@ -27,9 +27,15 @@
 package org.rascalmpl.vscode.lsp.util;
 
 import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
@@ -53,6 +59,8 @@ import org.rascalmpl.vscode.lsp.IBaseTextDocumentService;
 import org.rascalmpl.vscode.lsp.LSPIDEServices;
 import org.rascalmpl.vscode.lsp.rascal.RascalLanguageServer;
 import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
+import org.rascalmpl.vscode.lsp.util.concurrent.PriorityGate;
 
 import io.usethesource.vallang.ISourceLocation;
 import io.usethesource.vallang.IValue;
@@ -60,31 +68,85 @@ import io.usethesource.vallang.IValue;
 public class EvaluatorUtil {
     private static final Logger logger = LogManager.getLogger(EvaluatorUtil.class);
 
+    /**
+     * Every evaluator gets a gate that runs its jobs one at a time, most urgent first.
+     * The gate only holds on to the evaluator weakly, such that reloaded evaluators can be collected.
+     */
+    private static final Map<Evaluator, PriorityGate> gates = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static PriorityGate gateFor(Evaluator eval) {
+        return gates.computeIfAbsent(eval, e -> {
+            WeakReference<Evaluator> ref = new WeakReference<>(e);
+            return new PriorityGate(() -> {
+                Evaluator actual = ref.get();
+                if (actual != null) {
+                    actual.interrupt();
+                }
+            }, () -> {
+                // a preemption (or cancel) of the previous job might have raced with its end
+                Evaluator actual = ref.get();
+                if (actual != null) {
+                    actual.__setInterrupt(false);
+                }
+            });
+        });
+    }
+
     public static <T> InterruptibleFuture<T> runEvaluator(String task, CompletableFuture<Evaluator> eval, Function<Evaluator, T> call, T defaultResult, Executor exec, boolean throwFailure) {
+        return runEvaluator(task, eval, call, defaultResult, exec, throwFailure, JobPriority.INTERACTIVE);
+    }
+
+    /**
+     * Run a job on an evaluator, waiting for jobs of the same or a higher priority that are already queued.
+     * Background jobs that get preempted by more urgent jobs are restarted after those have finished.
+     */
+    public static <T> InterruptibleFuture<T> runEvaluator(String task, CompletableFuture<Evaluator> eval, Function<Evaluator, T> call, T defaultResult, Executor exec, boolean throwFailure, JobPriority priority) {
         AtomicBoolean interrupted = new AtomicBoolean(false);
         AtomicReference<@Nullable Evaluator> runningEvaluator = new AtomicReference<>(null);
         return new InterruptibleFuture<>(eval.thenApplyAsync(actualEval -> {
             try {
                 actualEval.jobStart(task);
-                synchronized (actualEval) {
-                    boolean jobSuccess = false;
-                    try {
+                PriorityGate gate = gateFor(actualEval);
+                PriorityGate.Ticket ticket = gate.enter(priority);
+                long started = System.nanoTime();
+                long waited = started - ticket.getCreated();
+                boolean jobSuccess = false;
+                try {
+                    while (true) {
+                        // the gate cleared the interrupt flag when it let us in
                         runningEvaluator.set(actualEval);
                         if (interrupted.get()) {
                             return defaultResult;
                         }
-                        T result = call.apply(actualEval);
-                        jobSuccess = true;
-                        return result;
-                    } catch (InterruptException e) {
-                        return defaultResult;
-                    } finally {
-                        actualEval.jobEnd(task, jobSuccess);
-                        actualEval.__setInterrupt(false);
-                        runningEvaluator.set(null);
+                        try {
+                            T result = call.apply(actualEval);
+                            jobSuccess = true;
+                            return result;
+                        } catch (InterruptException e) {
+                            if (interrupted.get() || !gate.wasPreempted(ticket)) {
+                                return defaultResult;
+                            }
+                            logger.debug("{} yields to more urgent work", task);
+                            runningEvaluator.set(null);
+                            long yielded = System.nanoTime();
+                            gate.requeue(ticket);
+                            long resumed = System.nanoTime();
+                            waited += resumed - yielded;
+                            started += resumed - yielded;
+                        }
                     }
+                } finally {
+                    actualEval.jobEnd(task, jobSuccess);
+                    actualEval.__setInterrupt(false);
+                    runningEvaluator.set(null);
+                    gate.leave(ticket);
+                    JobStatistics.getInstance().record(priority, waited, System.nanoTime() - started);
                 }
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return defaultResult;
+            }
             catch (Throw e) {
                 logger.error("Internal error during {}\n{}: {}\n{}", task, e.getLocation(), e.getMessage(),
                         e.getTrace());
@@ -123,6 +185,7 @@ public class EvaluatorUtil {
             Logger customLog = LogManager.getLogger("Evaluator: " + label);
             IRascalMonitor monitor = new LSPIDEServices(client, docService, workspaceService, customLog);
             boolean jobSuccess = false;
+            long start = System.nanoTime();
             try {
                 monitor.jobStart("Loading " + label);
                 Evaluator eval = ShellEvaluatorFactory.getDefaultEvaluator(new ByteArrayInputStream(new byte[0]),
@@ -144,10 +207,15 @@ public class EvaluatorUtil {
                         eval.addRascalSearchPath((ISourceLocation) src);
                     }
                 }
+                StringBuilder timings = new StringBuilder();
+                long phase = System.nanoTime();
+                timings.append("evaluator ").append(millisSince(start)).append("ms");
 
                 for (String i : imports) {
                     try {
                         eval.doImport(eval, i);
+                        timings.append(", ").append(i).append(' ').append(millisSince(phase)).append("ms");
+                        phase = System.nanoTime();
                     } catch (Exception e) {
                         logger.catching(e);
                         logger.error("Failure to import, RascalResolver: {}", eval.getRascalResolver());
@@ -155,10 +223,16 @@ public class EvaluatorUtil {
                     }
                 }
                 jobSuccess = true;
+                logger.info("Loaded {} in {}ms ({}), {}ms after the start of the server", label, millisSince(start), timings,
+                    ManagementFactory.getRuntimeMXBean().getUptime());
                 return eval;
             } finally {
                 monitor.jobEnd("Loading " + label, jobSuccess);
             }
         }, exec);
     }
+
+    private static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Facts per file, bounded by their estimated weight.
+ *
+ * Facts that weigh nothing (for example of open documents, or of files with diagnostics) are pinned: the cache never
+ * evicts them. The weight of a fact changes with its state, so after every change of that state it has to be
+ * {@link #reweigh reweighed}, else the cache keeps using the weight it had when it was last written.
+ */
+public class FactsCache<K, V> {
+    private static final Logger logger = LogManager.getLogger(FactsCache.class);
+    private static final long MAX_WEIGHT = Long.getLong("rascal.lsp.fileFacts.maxWeight", Runtime.getRuntime().maxMemory() / 4 / 256);
+
+    private final long maxWeight;
+    private final Cache<K, V> facts;
+
+    public FactsCache(ToIntFunction<V> weight) {
+        this(MAX_WEIGHT, weight, null);
+    }
+
+    /**
+     * @param maintenance runs the evictions, by default this is done in the background
+     */
+    public FactsCache(long maxWeight, ToIntFunction<V> weight, @Nullable Executor maintenance) {
+        this.maxWeight = maxWeight;
+        Caffeine<K, V> builder = Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .<K, V>weigher((k, v) -> weight.applyAsInt(v))
+            .removalListener((k, v, cause) -> {
+                if (cause.wasEvicted() && logger.isTraceEnabled()) {
+                    logger.trace("Evicted facts of {}, {}", k, getFootprint());
+                }
+            });
+        if (maintenance != null) {
+            builder = builder.executor(maintenance);
+        }
+        this.facts = builder.build();
+    }
+
+    public V get(K file, Function<? super K, ? extends V> newFact) {
+        return facts.get(file, newFact);
+    }
+
+    public @Nullable V getIfPresent(K file) {
+        return facts.getIfPresent(file);
+    }
+
+    public ConcurrentMap<K, V> asMap() {
+        return facts.asMap();
+    }
+
+    /**
+     * Replacing the fact with itself makes the cache weigh it again, a fact that was replaced or evicted in the meantime is left alone
+     */
+    public void reweigh(K file, V fact) {
+        facts.asMap().replace(file, fact, fact);
+    }
+
+    /**
+     * @return the number of files we keep facts for, and their estimated weight (pinned files weigh nothing)
+     */
+    public String getFootprint() {
+        long weight = facts.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L);
+        return facts.estimatedSize() + " files, weight " + weight + " of " + maxWeight;
+    }
+}
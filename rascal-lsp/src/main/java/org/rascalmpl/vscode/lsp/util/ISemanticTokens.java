@@ -34,10 +34,16 @@ import org.eclipse.lsp4j.SemanticTokensWithRegistrationOptions;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.rascalmpl.values.parsetrees.ITree;
 
+import io.usethesource.vallang.ISourceLocation;
+
 public interface ISemanticTokens {
 	SemanticTokensCapabilities capabilities();
 	SemanticTokensWithRegistrationOptions options();
-    SemanticTokens semanticTokensFull(ITree tree);
-	Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(String previousDelta, ITree tree);
+	/** tokenize the whole tree, and remember the result for later delta requests for this file */
+	SemanticTokens semanticTokensFull(ISourceLocation file, ITree tree);
+	/** tokenize the whole tree, and report only the difference with the earlier result, if we still have it */
+	Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(ISourceLocation file, String previousId, ITree tree);
 	SemanticTokens semanticTokensRange(Range range, ITree tree);
-}
\ No newline at end of file
+	/** drop the remembered tokens of this file */
+	void forget(ISourceLocation file);
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
+
+/**
+ * Queue-wait and run-time histograms of evaluator jobs, per priority class.
+ *
+ * A summary is logged every {@value #REPORT_EVERY} jobs (and can be requested with {@link #summary()}),
+ * so that latency improvements (or regressions) for interactive requests can be measured.
+ */
+public class JobStatistics {
+    private static final Logger logger = LogManager.getLogger(JobStatistics.class);
+    private static final int REPORT_EVERY = 500;
+    private static final JobStatistics INSTANCE = new JobStatistics();
+
+    private final Map<JobPriority, Histogram> queueWait = new EnumMap<>(JobPriority.class);
+    private final Map<JobPriority, Histogram> runTime = new EnumMap<>(JobPriority.class);
+    private final AtomicLong jobs = new AtomicLong();
+
+    private JobStatistics() {
+        for (JobPriority p : JobPriority.values()) {
+            queueWait.put(p, new Histogram());
+            runTime.put(p, new Histogram());
+        }
+    }
+
+    public static JobStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    public void record(JobPriority priority, long waitNanos, long runNanos) {
+        queueWait.get(priority).record(waitNanos);
+        runTime.get(priority).record(runNanos);
+        if (jobs.incrementAndGet() % REPORT_EVERY == 0) {
+            logger.info("Evaluator jobs:\n{}", this::summary);
+        }
+    }
+
+    public Histogram getQueueWait(JobPriority priority) {
+        return queueWait.get(priority);
+    }
+
+    public Histogram getRunTime(JobPriority priority) {
+        return runTime.get(priority);
+    }
+
+    public String summary() {
+        StringBuilder result = new StringBuilder();
+        for (JobPriority p : JobPriority.values()) {
+            Histogram wait = queueWait.get(p);
+            Histogram run = runTime.get(p);
+            if (wait.getCount() == 0) {
+                continue;
+            }
+            result.append(String.format("%-16s n=%d wait p50=%dms p99=%dms run p50=%dms p99=%dms%n",
+                p, wait.getCount(),
+                wait.percentileMillis(0.5), wait.percentileMillis(0.99),
+                run.percentileMillis(0.5), run.percentileMillis(0.99)));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Histogram with buckets that double in size, starting at 1 microsecond.
+     * Percentiles are reported as the upper bound of their bucket.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+
+        public void record(long nanos) {
+            long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long percentileMillis(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= threshold) {
+                    return TimeUnit.MICROSECONDS.toMillis(1L << i);
+                }
+            }
+            return TimeUnit.MICROSECONDS.toMillis(1L << (BUCKETS - 1));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.rascalmpl.values.parsetrees.ITree;
+
+import io.usethesource.vallang.ISourceLocation;
+
+/**
+ * Cache of parse trees, keyed by the file, a hash of the contents, and the identity of the parser.
+ *
+ * This makes sure that re-opening a file, or undoing a change, does not cost a full parse.
+ * The cache is bounded by the total amount of characters of the cached inputs, and the trees
+ * are softly referenced, so the GC can reclaim them under memory pressure.
+ */
+public class ParseTreeCache {
+    private static final Logger logger = LogManager.getLogger(ParseTreeCache.class);
+    private static final long MAX_CHARS = Long.getLong("rascal.lsp.parseCache.maxChars", 2_000_000);
+    private static final AtomicLong parserIds = new AtomicLong();
+
+    private final String name;
+    private final Cache<Key, ITree> trees;
+
+    public ParseTreeCache(String name) {
+        this.name = name;
+        this.trees = Caffeine.newBuilder()
+            .maximumWeight(MAX_CHARS)
+            .<Key, ITree>weigher((k, v) -> Math.max(1, k.length))
+            .expireAfterAccess(Duration.ofMinutes(30))
+            .softValues()
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Every (re)loaded parser should get a fresh identity, such that we never reuse trees of an older grammar
+     */
+    public static String newParserIdentity(String parserName) {
+        return parserName + "#" + parserIds.incrementAndGet();
+    }
+
+    /**
+     * Return the cached tree for this input, or run the parser and remember its result when it succeeds.
+     */
+    public CompletableFuture<ITree> lookupOrParse(String parserIdentity, ISourceLocation file, String input, Supplier<CompletableFuture<ITree>> parser) {
+        Key key = new Key(file.top(), parserIdentity, input);
+        ITree cached = trees.getIfPresent(key);
+        if (cached != null) {
+            logger.trace("{}: parse tree cache hit for {}", name, file);
+            return CompletableFuture.completedFuture(cached);
+        }
+        logger.trace("{}: parse tree cache miss for {}, {}", name, file, trees.stats());
+        return parser.get().whenComplete((r, t) -> {
+            if (r != null) {
+                trees.put(key, r);
+            }
+        });
+    }
+
+    public CacheStats stats() {
+        return trees.stats();
+    }
+
+    public long estimatedSize() {
+        return trees.estimatedSize();
+    }
+
+    private static final class Key {
+        private final ISourceLocation file;
+        private final String parser;
+        private final HashCode contentHash;
+        private final int length;
+
+        Key(ISourceLocation file, String parser, String contents) {
+            this.file = file;
+            this.parser = parser;
+            this.contentHash = Hashing.murmur3_128().hashUnencodedChars(contents);
+            this.length = contents.length();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return length == other.length
+                && contentHash.equals(other.contentHash)
+                && file.equals(other.file)
+                && parser.equals(other.parser);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, parser, contentHash, length);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A piece table that holds the contents of an open editor, so that ranged edits
+ * (as send by the client in incremental sync mode) do not copy the whole file.
+ *
+ * Positions are LSP positions: 0-based lines, and columns counted in UTF-16 chars,
+ * which is exactly what a java char is. Lines are separated by '\n', '\r\n' or a lone '\r',
+ * and a character beyond the end of its line is clamped to the end of that line.
+ *
+ * This class is not thread safe, the owner has to make sure it's not accessed concurrently.
+ */
+public class PieceTable {
+    /** after this many pieces we flatten the table again, to keep position lookups cheap */
+    private static final int MAX_PIECES = 1024;
+
+    private String original;
+    /** position of the last char of every line break in the original contents */
+    private int[] originalNewlines;
+    private final StringBuilder added = new StringBuilder();
+    /** position of the last char of every line break in the added buffer */
+    private final GrowingIntArray addedNewlines = new GrowingIntArray();
+
+    private List<Piece> pieces = new ArrayList<>();
+    private int length;
+    private @Nullable String flattened;
+
+    public PieceTable(String contents) {
+        reset(contents);
+    }
+
+    /**
+     * Replace the complete contents of the table
+     */
+    public void reset(String contents) {
+        original = contents;
+        originalNewlines = newlines(contents);
+        added.setLength(0);
+        addedNewlines.clear();
+        pieces = new ArrayList<>();
+        if (!contents.isEmpty()) {
+            pieces.add(new Piece(false, 0, contents.length(), originalNewlines.length));
+        }
+        length = contents.length();
+        flattened = contents;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Replace the text between two LSP positions (end is exclusive) with a new text.
+     */
+    public void replace(int startLine, int startCharacter, int endLine, int endCharacter, String text) {
+        int start = offsetOf(startLine, startCharacter);
+        int end = Math.max(start, offsetOf(endLine, endCharacter));
+        replace(start, end, text);
+    }
+
+    /**
+     * Replace the chars between start (inclusive) and end (exclusive) with a new text.
+     */
+    public void replace(int start, int end, String text) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid range: [" + start + ", " + end + ") for length: " + length);
+        }
+        if (start == end && text.isEmpty()) {
+            return;
+        }
+        List<Piece> result = new ArrayList<>(pieces.size() + 2);
+        int offset = 0;
+        boolean inserted = false;
+        for (Piece p : pieces) {
+            int pieceEnd = offset + p.length;
+            if (pieceEnd <= start) {
+                result.add(p); // before the edit
+            }
+            else if (offset >= end && inserted) {
+                result.add(p); // after the edit
+            }
+            else {
+                if (offset < start) {
+                    result.add(slice(p, 0, start - offset));
+                }
+                if (!inserted) {
+                    insertPiece(result, text);
+                    inserted = true;
+                }
+                if (pieceEnd > end) {
+                    result.add(slice(p, Math.max(0, end - offset), p.length));
+                }
+            }
+            offset = pieceEnd;
+        }
+        if (!inserted) {
+            insertPiece(result, text);
+        }
+        pieces = result;
+        length += text.length() - (end - start);
+        flattened = null;
+        if (pieces.size() > MAX_PIECES) {
+            reset(toString());
+        }
+    }
+
+    private void insertPiece(List<Piece> target, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        int start = added.length();
+        if (text.charAt(0) == '\n' && start > 0 && added.charAt(start - 1) == '\r') {
+            // the trailing '\r' of the buffer becomes the first half of a '\r\n' pair
+            addedNewlines.removeLast();
+        }
+        for (int i = 0, n = text.length(); i < n; i++) {
+            if (isLineBreakEnd(text, i)) {
+                addedNewlines.add(start + i);
+            }
+        }
+        added.append(text);
+        target.add(new Piece(true, start, text.length(), countNewlines(true, start, start + text.length())));
+    }
+
+    private Piece slice(Piece p, int from, int to) {
+        if (from == 0 && to == p.length) {
+            return p;
+        }
+        int start = p.start + from;
+        int end = p.start + to;
+        return new Piece(p.added, start, to - from, countNewlines(p.added, start, end));
+    }
+
+    /**
+     * Count the line breaks between from and to, as if that range was a document on its own.
+     */
+    private int countNewlines(boolean inAdded, int from, int to) {
+        int result = inAdded
+            ? addedNewlines.lowerBound(to) - addedNewlines.lowerBound(from)
+            : lowerBound(originalNewlines, originalNewlines.length, to) - lowerBound(originalNewlines, originalNewlines.length, from);
+        if (endsWithSplitPair(inAdded, from, to)) {
+            // in the buffer this '\r' is followed by a '\n', on its own it is a line break
+            result++;
+        }
+        return result;
+    }
+
+    private boolean endsWithSplitPair(boolean inAdded, int from, int to) {
+        CharSequence buffer = inAdded ? added : original;
+        return to > from && to < buffer.length() && buffer.charAt(to - 1) == '\r' && buffer.charAt(to) == '\n';
+    }
+
+    /**
+     * @return position (in its buffer) of the last char of the nth (1-based) line break of a piece
+     */
+    private int nthNewline(Piece p, int nth) {
+        int inIndex = p.newlines - (endsWithSplitPair(p.added, p.start, p.start + p.length) ? 1 : 0);
+        if (nth > inIndex) {
+            return p.start + p.length - 1;
+        }
+        return p.added
+            ? addedNewlines.get(addedNewlines.lowerBound(p.start) + nth - 1)
+            : originalNewlines[lowerBound(originalNewlines, originalNewlines.length, p.start) + nth - 1];
+    }
+
+    private char charAt(Piece p, int index) {
+        return p.added ? added.charAt(p.start + index) : original.charAt(p.start + index);
+    }
+
+    /**
+     * Translate an LSP position to an offset in the document.
+     * Characters beyond the end of the line are clamped to the end of the line,
+     * and lines beyond the end of the document are clamped to the end of the document.
+     */
+    public int offsetOf(int line, int character) {
+        int lineStart = lineStart(line);
+        if (lineStart < 0) {
+            return length;
+        }
+        return endOfLine(lineStart, Math.min(length, lineStart + Math.max(0, character)));
+    }
+
+    /**
+     * @return offset of the first char of the line, or -1 if the document has less lines
+     */
+    private int lineStart(int line) {
+        if (line <= 0) {
+            return 0;
+        }
+        int linesSeen = 0;
+        int offset = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece p = pieces.get(i);
+            @Nullable Piece next = i + 1 < pieces.size() ? pieces.get(i + 1) : null;
+            // a '\r' at the end of this piece and a '\n' at the start of the next one are a single line break,
+            // but both pieces count it, so the one of this piece is ignored
+            boolean pairedWithNext = next != null && charAt(p, p.length - 1) == '\r' && charAt(next, 0) == '\n';
+            if (linesSeen + p.newlines >= line) {
+                // the start of the line is inside this piece
+                int nth = line - linesSeen; // 1-based index of the newline inside this piece
+                int newlinePosition = nthNewline(p, nth);
+                int lineStart = offset + (newlinePosition - p.start) + 1;
+                if (pairedWithNext && nth == p.newlines) {
+                    lineStart++; // skip the '\n' at the start of the next piece
+                }
+                return lineStart;
+            }
+            linesSeen += p.newlines - (pairedWithNext ? 1 : 0);
+            offset += p.length;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the first line break between from and to, or to if there is none
+     */
+    private int endOfLine(int from, int to) {
+        int offset = 0;
+        for (Piece p : pieces) {
+            int pieceEnd = offset + p.length;
+            if (pieceEnd > from) {
+                for (int i = Math.max(0, from - offset), end = Math.min(p.length, to - offset); i < end; i++) {
+                    char c = charAt(p, i);
+                    if (c == '\n' || c == '\r') {
+                        return offset + i;
+                    }
+                }
+            }
+            if (pieceEnd >= to) {
+                break;
+            }
+            offset = pieceEnd;
+        }
+        return to;
+    }
+
+    /**
+     * Materialize the contents, the result is cached until the next modification.
+     */
+    @Override
+    public String toString() {
+        String result = flattened;
+        if (result == null) {
+            result = new String(toCharArray());
+            flattened = result;
+        }
+        return result;
+    }
+
+    /**
+     * Copy the chars between start (inclusive) and end (exclusive), without materializing the whole contents.
+     */
+    public String substring(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Invalid range: [" + start + ", " + end + ") for length: " + length);
+        }
+        String current = flattened;
+        if (current != null) {
+            return current.substring(start, end);
+        }
+        StringBuilder result = new StringBuilder(end - start);
+        int offset = 0;
+        for (Piece p : pieces) {
+            int pieceEnd = offset + p.length;
+            if (pieceEnd > start && offset < end) {
+                int from = p.start + Math.max(0, start - offset);
+                int to = p.start + Math.min(p.length, end - offset);
+                result.append(p.added ? added : original, from, to);
+            }
+            if (pieceEnd >= end) {
+                break;
+            }
+            offset = pieceEnd;
+        }
+        return result.toString();
+    }
+
+    public char[] toCharArray() {
+        String current = flattened;
+        if (current != null) {
+            return current.toCharArray();
+        }
+        char[] result = new char[length];
+        int offset = 0;
+        for (Piece p : pieces) {
+            if (p.added) {
+                added.getChars(p.start, p.start + p.length, result, offset);
+            }
+            else {
+                original.getChars(p.start, p.start + p.length, result, offset);
+            }
+            offset += p.length;
+        }
+        return result;
+    }
+
+    private static int[] newlines(String contents) {
+        GrowingIntArray result = new GrowingIntArray();
+        for (int i = 0, n = contents.length(); i < n; i++) {
+            if (isLineBreakEnd(contents, i)) {
+                result.add(i);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * @return true if the char at index is the last char of a line break ('\n', or a '\r' that is not followed by a '\n')
+     */
+    private static boolean isLineBreakEnd(CharSequence contents, int index) {
+        char c = contents.charAt(index);
+        return c == '\n' || (c == '\r' && (index + 1 == contents.length() || contents.charAt(index + 1) != '\n'));
+    }
+
+    /**
+     * @return index of the first element that is >= key
+     */
+    private static int lowerBound(int[] data, int size, int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (data[mid] < key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Piece {
+        private final boolean added;
+        private final int start;
+        private final int length;
+        private final int newlines;
+
+        Piece(boolean added, int start, int length, int newlines) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.newlines = newlines;
+        }
+    }
+
+    private static final class GrowingIntArray {
+        private int[] data = new int[16];
+        private int filled = 0;
+
+        void add(int v) {
+            if (filled == data.length) {
+                data = Arrays.copyOf(data, data.length + (data.length / 2));
+            }
+            data[filled++] = v;
+        }
+
+        int get(int index) {
+            return data[index];
+        }
+
+        void removeLast() {
+            filled--;
+        }
+
+        int lowerBound(int key) {
+            return PieceTable.lowerBound(data, filled, key);
+        }
+
+        void clear() {
+            filled = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, filled);
+        }
+    }
+}
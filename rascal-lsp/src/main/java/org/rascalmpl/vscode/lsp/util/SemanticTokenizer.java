@@ -30,8 +30,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.eclipse.lsp4j.Range;
@@ -39,34 +44,139 @@ import org.eclipse.lsp4j.SemanticTokens;
 import org.eclipse.lsp4j.SemanticTokensCapabilities;
 import org.eclipse.lsp4j.SemanticTokensClientCapabilitiesRequests;
 import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensEdit;
 import org.eclipse.lsp4j.SemanticTokensLegend;
+import org.eclipse.lsp4j.SemanticTokensServerFull;
 import org.eclipse.lsp4j.SemanticTokensWithRegistrationOptions;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.rascalmpl.values.IRascalValueFactory;
 import org.rascalmpl.values.parsetrees.ITree;
 import org.rascalmpl.values.parsetrees.ProductionAdapter;
 import org.rascalmpl.values.parsetrees.TreeAdapter;
 
+import com.google.common.primitives.Ints;
+
 import io.usethesource.vallang.IConstructor;
+import io.usethesource.vallang.IList;
+import io.usethesource.vallang.ISourceLocation;
 import io.usethesource.vallang.IString;
 import io.usethesource.vallang.IValue;
 
 public class SemanticTokenizer implements ISemanticTokens {
+    /** characters in a file before we split the tokenization over multiple threads */
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("rascal.lsp.tokenizer.parallelThreshold", 1_000_000);
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int parallelThreshold;
+    private final AtomicLong resultIds = new AtomicLong();
+    /** the last full result per file, such that the next request can be answered with a delta */
+    private final Map<ISourceLocation, EncodedTokens> lastResults = new ConcurrentHashMap<>();
+
+    public SemanticTokenizer() {
+        this(PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param parallelThreshold characters in a file before we split the tokenization over multiple threads
+     */
+    public SemanticTokenizer(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
 
     @Override
-    public SemanticTokens semanticTokensFull(ITree tree) {
+    public SemanticTokens semanticTokensFull(ISourceLocation file, ITree tree) {
+        EncodedTokens result = tokenizeAndRemember(file, tree);
+        return new SemanticTokens(result.resultId, Ints.asList(result.data));
+    }
+
+    @Override
+    public Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(ISourceLocation file, String previousId, ITree tree) {
+        EncodedTokens previous = lastResults.get(file.top());
+        EncodedTokens current = tokenizeAndRemember(file, tree);
+        if (previous == null || !previous.resultId.equals(previousId)) {
+            // the client is asking for a delta against a result we do not have (anymore)
+            return Either.forLeft(new SemanticTokens(current.resultId, Ints.asList(current.data)));
+        }
+        return Either.forRight(new SemanticTokensDelta(diff(previous.data, current.data), current.resultId));
+    }
+
+    private EncodedTokens tokenizeAndRemember(ISourceLocation file, ITree tree) {
         TokenList tokens = new TokenList();
-        new TokenCollector(tokens).collect(tree);
-        return new SemanticTokens(tokens.getTheList());
+        if (isLarge(tree)) {
+            tokenizeParallel(tree, tokens);
+        }
+        else {
+            new TokenCollector(tokens).collect(tree);
+        }
+        EncodedTokens result = new EncodedTokens(nextResultId(), tokens.toArray());
+        lastResults.put(file.top(), result);
+        return result;
     }
 
     @Override
-    public Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(String previousId, ITree tree) {
-       return Either.forLeft(semanticTokensFull(tree));
+    public void forget(ISourceLocation file) {
+        lastResults.remove(file.top());
+    }
+
+    private boolean isLarge(ITree tree) {
+        ISourceLocation loc = TreeAdapter.getLocation(tree);
+        return loc != null && loc.hasOffsetLength() && loc.getLength() > parallelThreshold;
+    }
+
+    /**
+     * Split the tree in chunks that are walked in parallel, and then feed the recorded characters
+     * of all the chunks in order to a single collector, which stitches the tokens together at the seams.
+     */
+    private static void tokenizeParallel(ITree tree, TokenList tokens) {
+        List<CategoryRuns> chunks = ChunkSplitter.split(tree, CHUNK_SIZE).parallelStream() // runs on the common ForkJoinPool
+            .map(CategoryRuns::record)
+            .collect(Collectors.toList());
+        new TokenCollector(tokens).collect(chunks);
+    }
+
+    private String nextResultId() {
+        return Long.toString(resultIds.incrementAndGet());
+    }
+
+    /**
+     * Since the encoding of tokens is relative to the previous token, an edit only changes
+     * the integers around it, so we report a single edit that replaces everything between
+     * the common prefix and the common suffix of the two arrays.
+     */
+    private static List<SemanticTokensEdit> diff(int[] previous, int[] current) {
+        int prefix = 0;
+        int maxPrefix = Math.min(previous.length, current.length);
+        while (prefix < maxPrefix && previous[prefix] == current[prefix]) {
+            prefix++;
+        }
+        if (prefix == previous.length && prefix == current.length) {
+            return Collections.emptyList();
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix && previous[previous.length - 1 - suffix] == current[current.length - 1 - suffix]) {
+            suffix++;
+        }
+        int deleteCount = previous.length - prefix - suffix;
+        List<Integer> inserted = Ints.asList(Arrays.copyOfRange(current, prefix, current.length - suffix));
+        return Collections.singletonList(new SemanticTokensEdit(prefix, deleteCount, inserted));
+    }
+
+    private static final class EncodedTokens {
+        private final String resultId;
+        private final int[] data;
+
+        EncodedTokens(String resultId, int[] data) {
+            this.resultId = resultId;
+            this.data = data;
+        }
     }
 
     @Override
     public SemanticTokens semanticTokensRange(Range range, ITree tree) {
-        return semanticTokensFull(tree);
+        TokenList tokens = new TokenList(range.getStart().getLine(), range.getEnd().getLine());
+        new TokenCollector(tokens, range).collect(tree);
+        return new SemanticTokens(Ints.asList(tokens.toArray()));
     }
 
     @Override
@@ -74,7 +184,8 @@ public class SemanticTokenizer implements ISemanticTokens {
         SemanticTokensWithRegistrationOptions result = new SemanticTokensWithRegistrationOptions();
         SemanticTokensLegend legend = new SemanticTokensLegend(TokenTypes.getTokenTypes(), TokenTypes.getTokenModifiers());
 
-        result.setFull(true);
+        result.setFull(new SemanticTokensServerFull(true));
+        result.setRange(true);
         result.setLegend(legend);
 
         return result;
@@ -94,22 +205,45 @@ public class SemanticTokenizer implements ISemanticTokens {
         return cps;
     }
 
+    /**
+     * Encodes the tokens straight into a growable int array, 5 ints per token
+     */
     private static class TokenList {
-        List<Integer> theList = new ArrayList<>(500);
+        int[] data = new int[5 * 512];
+        int size = 0;
         int previousLine = 0;
         int previousStart = 0;
+        /** tokens before this line are dropped */
+        final int firstLine;
+        /** tokens after this line are dropped */
+        final int lastLine;
 
-        public List<Integer> getTheList() {
-            return Collections.unmodifiableList(theList);
+        TokenList() {
+            this(0, Integer.MAX_VALUE);
+        }
+
+        TokenList(int firstLine, int lastLine) {
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+        }
+
+        public int[] toArray() {
+            return Arrays.copyOf(data, size);
         }
 
         public void addToken(int startLine, int startColumn, int length, String category) {
+            if (startLine < firstLine || startLine > lastLine) {
+                return;
+            }
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
             // https://microsoft.github.io/language-server-protocol/specifications/specification-3-16/#textDocument_semanticTokens
-            theList.add(startLine - previousLine);
-            theList.add(startLine == previousLine ? startColumn - previousStart : startColumn);
-            theList.add(length);
-            theList.add(TokenTypes.tokenTypeForName(category));
-            theList.add(0); // no support for modifiers yet
+            data[size++] = startLine - previousLine;
+            data[size++] = startLine == previousLine ? startColumn - previousStart : startColumn;
+            data[size++] = length;
+            data[size++] = TokenTypes.tokenTypeForName(category);
+            data[size++] = 0; // no support for modifiers yet
             previousLine = startLine;
             previousStart = startColumn;
         }
@@ -385,44 +519,60 @@ public class SemanticTokenizer implements ISemanticTokens {
         }
     }
 
-    private static class TokenCollector {
-        private int line;
-        private int column;
-        private int startLineCurrentToken;
-        private int startColumnCurrentToken;
-        private String currentTokenCategory;
-
-        private final boolean showAmb = false;
-        private TokenList tokens;
-
-        public TokenCollector(TokenList tokens) {
-            this.tokens = tokens;
-            line = 0;
-            column = 0;
+    /**
+     * Iterative pre-order walk over a parse tree, that computes the semantic category of every character.
+     * We use an explicit stack, since (generated) trees can be deeper than the Java stack allows.
+     */
+    private abstract static class TreeWalker {
+        /** parse trees share their production objects, so we only have to analyze each of them once */
+        private final Map<IConstructor, ProductionInfo> productions = new IdentityHashMap<>();
+        private ITree[] stackTrees = new ITree[64];
+        private @Nullable String[] stackCategories = new String[64];
+        private int stackSize = 0;
+
+        /** called for every character in order, with the category it belongs to */
+        protected abstract void onChar(int character, @Nullable String category);
+
+        /** called before going into an appl or amb, returning false skips the tree */
+        protected boolean enter(ITree tree, @Nullable String category) {
+            return true;
         }
 
-        public void collect(ITree tree) {
-            collect(tree, null);
-            //check for final token
-            if (column > startColumnCurrentToken) {
-                tokens.addToken(startLineCurrentToken, startColumnCurrentToken, column - startColumnCurrentToken, currentTokenCategory);
+        protected void walk(ITree root, @Nullable String rootCategory) {
+            push(root, rootCategory);
+            while (stackSize > 0) {
+                stackSize--;
+                ITree tree = stackTrees[stackSize];
+                String category = stackCategories[stackSize];
+                stackTrees[stackSize] = null;
+                stackCategories[stackSize] = null;
+
+                if (tree.isChar()) {
+                    onChar(TreeAdapter.getCharacter(tree), category);
+                }
+                else if (!enter(tree, category)) {
+                    continue;
+                }
+                else if (tree.isAppl()) {
+                    pushChildren(tree, category);
+                }
+                else if (tree.isAmb()) {
+                    push((ITree) TreeAdapter.getAlternatives(tree).iterator().next(), category);
+                }
             }
         }
 
-        private void collect(ITree tree, @Nullable String currentCategory) {
-            if (tree.isAppl()) {
-                collectAppl(tree, currentCategory);
-            }
-            else if (tree.isAmb()) {
-                collectAmb(tree, currentCategory);
-            }
-            else if (tree.isChar()) {
-                collectChar(tree, currentCategory);
+        private void push(ITree tree, @Nullable String category) {
+            if (stackSize == stackTrees.length) {
+                stackTrees = Arrays.copyOf(stackTrees, stackSize * 2);
+                stackCategories = Arrays.copyOf(stackCategories, stackSize * 2);
             }
+            stackTrees[stackSize] = tree;
+            stackCategories[stackSize] = category;
+            stackSize++;
         }
 
-        @SuppressWarnings("java:S3776") // parsing tends to be complex
-        private void collectAppl(ITree arg, @Nullable String currentCategory) {
+        private void pushChildren(ITree arg, @Nullable String currentCategory) {
             String category = null;
 
             IValue catParameter = arg.asWithKeywordParameters().getParameter("category");
@@ -431,52 +581,179 @@ public class SemanticTokenizer implements ISemanticTokens {
                 category = ((IString) catParameter).getValue();
             }
 
-            IConstructor prod = TreeAdapter.getProduction(arg);
+            ProductionInfo prod = productionInfo(arg);
 
-            if (category == null && ProductionAdapter.isDefault(prod)) {
-                category = ProductionAdapter.getCategory(prod);
+            if (category == null) {
+                category = prod.category;
             }
 
-            if (category == null && currentCategory == null && (ProductionAdapter.isLiteral(prod) || ProductionAdapter.isCILiteral(prod))) {
+            if (category == null && currentCategory == null && prod.keywordLiteral) {
                 category = "keyword.other";
+            }
 
-                // unless this is an operator
-                for (IValue child : TreeAdapter.getArgs(arg)) {
+            // now we go down in the tree to find more tokens and to advance the counters
+            // (in reverse, such that the first child is on top of the stack)
+            IList args = TreeAdapter.getArgs(arg);
+            for (int i = args.length() - 1; i >= 0; i--) {
+                ITree child = (ITree) args.get(i);
+                //Propagate current category to child unless currently in a syntax nonterminal
+                //*AND* the current child is a syntax nonterminal too
+                if (prod.sort && child.isAppl() && productionInfo(child).sort) {
+                    push(child, null);
+                } else {
+                    push(child, category != null ? category : currentCategory);
+                }
+            }
+        }
+
+        private ProductionInfo productionInfo(ITree appl) {
+            IConstructor prod = TreeAdapter.getProduction(appl);
+            ProductionInfo result = productions.get(prod);
+            if (result == null) {
+                result = new ProductionInfo(prod, appl);
+                productions.put(prod, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Everything of an appl that only depends on its production
+     */
+    private static final class ProductionInfo {
+        private final @Nullable String category;
+        /** a literal that looks like a keyword, instead of an operator */
+        private final boolean keywordLiteral;
+        private final boolean sort;
+
+        ProductionInfo(IConstructor prod, ITree appl) {
+            this.category = ProductionAdapter.isDefault(prod) ? ProductionAdapter.getCategory(prod) : null;
+            this.sort = ProductionAdapter.isSort(prod);
+            boolean keyword = false;
+            if (ProductionAdapter.isLiteral(prod) || ProductionAdapter.isCILiteral(prod)) {
+                keyword = true;
+                // unless this is an operator (the characters of a literal only depend on its production)
+                for (IValue child : TreeAdapter.getArgs(appl)) {
                     int c = TreeAdapter.getCharacter((ITree) child);
                     if (c != '-' && !Character.isJavaIdentifierPart(c)) {
-                        category = null;
+                        keyword = false;
                     }
                 }
             }
+            this.keywordLiteral = keyword;
+        }
+    }
 
-            // now we go down in the tree to find more tokens and to advance the counters
-            for (IValue child : TreeAdapter.getArgs(arg)) {
-                //Propagate current category to child unless currently in a syntax nonterminal
-                //*AND* the current child is a syntax nonterminal too
-                if (!TreeAdapter.isChar((ITree) child) && ProductionAdapter.isSort(prod) &&
-                        ProductionAdapter.isSort(TreeAdapter.getProduction((ITree) child))) {
-                    collect((ITree) child, null);
-                } else {
-                    collect((ITree) child, category != null ? category : currentCategory);
+    /**
+     * Turns the categories of the characters into tokens: a token ends when the category changes, or at the end of a line.
+     */
+    private static class TokenCollector extends TreeWalker {
+        private int line;
+        private int column;
+        private int startLineCurrentToken;
+        private int startColumnCurrentToken;
+        private String currentTokenCategory;
+
+        private TokenList tokens;
+
+        /** if not null, only the subtrees that overlap with these lines are visited */
+        private final @Nullable Range range;
+        private boolean pastRange = false;
+
+        public TokenCollector(TokenList tokens) {
+            this(tokens, null);
+        }
+
+        public TokenCollector(TokenList tokens, @Nullable Range range) {
+            this.tokens = tokens;
+            this.range = range;
+            line = 0;
+            column = 0;
+        }
+
+        public void collect(ITree tree) {
+            walk(tree, null);
+            finish();
+        }
+
+        /**
+         * Replay the characters recorded by the chunks of a parallel tokenization, in order
+         */
+        public void collect(List<CategoryRuns> chunks) {
+            for (CategoryRuns chunk : chunks) {
+                for (int i = 0; i < chunk.size; i++) {
+                    startCategory(chunk.categories[i]);
+                    if (chunk.widths[i] == CategoryRuns.NEWLINE) {
+                        newLine();
+                    }
+                    else {
+                        column += chunk.widths[i];
+                    }
                 }
             }
+            finish();
         }
 
-        private void collectAmb(ITree arg, @Nullable String currentCategory) {
-            if (showAmb) {
+        private void finish() {
+            //check for final token
+            if (column > startColumnCurrentToken) {
+                tokens.addToken(startLineCurrentToken, startColumnCurrentToken, column - startColumnCurrentToken, currentTokenCategory);
+            }
+        }
+
+        @Override
+        protected boolean enter(ITree tree, @Nullable String category) {
+            Range lines = range;
+            return lines == null || inRange(tree, lines);
+        }
+
+        /**
+         * Check if the tree overlaps with the lines of the range. A tree before the range is skipped
+         * by jumping the line and column counters to its end, trees after the range end the traversal.
+         */
+        private boolean inRange(ITree tree, Range range) {
+            if (pastRange) {
+                return false;
+            }
+            ISourceLocation loc = TreeAdapter.getLocation(tree);
+            if (loc == null || !loc.hasLineColumn()) {
+                // we have to go in to find out
+                return true;
+            }
+            if (loc.getEndLine() - 1 < range.getStart().getLine()) {
+                // columns are counted in codepoints here, but we only emit tokens from the first line of the range,
+                // and the newline before it resets the column
+                line = loc.getEndLine() - 1;
+                column = loc.getEndColumn();
                 startLineCurrentToken = line;
                 startColumnCurrentToken = column;
+                currentTokenCategory = null;
+                return false;
+            }
+            if (loc.getBeginLine() - 1 > range.getEnd().getLine()) {
+                pastRange = true;
+                return false;
+            }
+            return true;
+        }
 
-                collect((ITree) TreeAdapter.getAlternatives(arg).iterator().next(), "MetaAmbiguity");
+        @Override
+        protected void onChar(int currentChar, @Nullable String currentCategory) {
+            startCategory(currentCategory);
 
-                tokens.addToken(startLineCurrentToken, startColumnCurrentToken, column - startColumnCurrentToken, "MetaAmbiguity");
-            } else {
-                collect((ITree) TreeAdapter.getAlternatives(arg).iterator().next(), currentCategory);
+            //Token administration done, advance column/line counters
+            if (currentChar == '\n') {
+                newLine();
+            }
+            else if (Character.isSupplementaryCodePoint(currentChar)) {
+                column += 2; // lsp counts 16-bit chars instead of 32bit codepoints
+            }
+            else {
+                column++;
             }
         }
 
-        private void collectChar(ITree ch, @Nullable String currentCategory) {
-            int currentChar = TreeAdapter.getCharacter(ch);
+        private void startCategory(@Nullable String currentCategory) {
             //First check whether the token category has changed
             if (currentCategory == null && currentTokenCategory != null) {
                 //character has no semantic category, but there is a running token
@@ -498,27 +775,139 @@ public class SemanticTokenizer implements ISemanticTokens {
                 currentTokenCategory = currentCategory;
                 //startLineCurrentToken remains unchanged
             }
+        }
 
-            //Token administration done, advance column/line counters
-            if (currentChar == '\n') {
-                line++;
+        private void newLine() {
+            line++;
 
-                // this splits multi-line tokens automatically across the lines
-                if (currentTokenCategory != null) {
-                    if (column > startColumnCurrentToken) {
-                        tokens.addToken(startLineCurrentToken, startColumnCurrentToken, column - startColumnCurrentToken, currentTokenCategory);
-                    }
+            // this splits multi-line tokens automatically across the lines
+            if (currentTokenCategory != null) {
+                if (column > startColumnCurrentToken) {
+                    tokens.addToken(startLineCurrentToken, startColumnCurrentToken, column - startColumnCurrentToken, currentTokenCategory);
                 }
-                startColumnCurrentToken = 0;
-                startLineCurrentToken = line;
-                column = 0;
             }
-            else if (Character.isSupplementaryCodePoint(currentChar)) {
-                column += 2; // lsp counts 16-bit chars instead of 32bit codepoints
+            startColumnCurrentToken = 0;
+            startLineCurrentToken = line;
+            column = 0;
+        }
+    }
+
+    /**
+     * The characters of a chunk of the tree, compressed into runs of the same category.
+     * Since the token collector only reacts to category changes and newlines, replaying
+     * the runs of all chunks in order gives exactly the same tokens as a sequential walk.
+     */
+    private static final class CategoryRuns extends TreeWalker {
+        private static final int NEWLINE = -1;
+
+        private @Nullable String[] categories = new String[64];
+        /** width in UTF-16 units, or NEWLINE */
+        private int[] widths = new int[64];
+        private int size = 0;
+
+        static CategoryRuns record(Chunk chunk) {
+            CategoryRuns result = new CategoryRuns();
+            for (int i = 0; i < chunk.trees.size(); i++) {
+                result.walk(chunk.trees.get(i), chunk.categories.get(i));
+            }
+            return result;
+        }
+
+        @Override
+        protected void onChar(int character, @Nullable String category) {
+            if (character == '\n') {
+                add(category, NEWLINE);
             }
             else {
-                column++;
+                int width = Character.isSupplementaryCodePoint(character) ? 2 : 1;
+                int last = size - 1;
+                if (last >= 0 && widths[last] != NEWLINE && Objects.equals(categories[last], category)) {
+                    widths[last] += width;
+                }
+                else {
+                    add(category, width);
+                }
+            }
+        }
+
+        private void add(@Nullable String category, int width) {
+            if (size == widths.length) {
+                categories = Arrays.copyOf(categories, size * 2);
+                widths = Arrays.copyOf(widths, size * 2);
+            }
+            categories[size] = category;
+            widths[size] = width;
+            size++;
+        }
+    }
+
+    /**
+     * Consecutive trees (in document order) that are walked by the same thread
+     */
+    private static final class Chunk {
+        private final List<ITree> trees = new ArrayList<>();
+        private final List<@Nullable String> categories = new ArrayList<>();
+        private int size = 0;
+
+        void add(ITree tree, @Nullable String category, int treeSize) {
+            trees.add(tree);
+            categories.add(category);
+            size += treeSize;
+        }
+    }
+
+    /**
+     * Splits the tree into chunks in document order: trees that are smaller than the threshold are packed
+     * together with their neighbours until the chunk reaches the threshold, a tree that has no location to
+     * tell its size is a chunk on its own, and larger trees are split up into their children.
+     */
+    private static final class ChunkSplitter extends TreeWalker {
+        private final int threshold;
+        private final List<Chunk> chunks = new ArrayList<>();
+        /** the chunk that small trees are added to, until it is full */
+        private @Nullable Chunk current = null;
+
+        ChunkSplitter(int threshold) {
+            this.threshold = threshold;
+        }
+
+        static List<Chunk> split(ITree tree, int threshold) {
+            ChunkSplitter splitter = new ChunkSplitter(threshold);
+            splitter.walk(tree, null);
+            return splitter.chunks;
+        }
+
+        @Override
+        protected boolean enter(ITree tree, @Nullable String category) {
+            ISourceLocation loc = TreeAdapter.getLocation(tree);
+            if (loc == null || !loc.hasOffsetLength()) {
+                Chunk single = new Chunk();
+                single.add(tree, category, 0);
+                chunks.add(single);
+                current = null;
+                return false;
+            }
+            if (loc.getLength() <= threshold) {
+                add(tree, category, loc.getLength());
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        protected void onChar(int character, @Nullable String category) {
+            // characters directly below large trees are rare (and cheap), but they have to stay in order
+            add(IRascalValueFactory.getInstance().character(character), category, 1);
+        }
+
+        private void add(ITree tree, @Nullable String category, int size) {
+            Chunk target = current;
+            if (target == null || target.size + size > threshold) {
+                target = new Chunk();
+                chunks.add(target);
+                current = target;
             }
+            target.add(tree, category, size);
         }
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util.concurrent;
+
+/**
+ * Priority classes of jobs that run on an evaluator, from most to least urgent.
+ */
+public enum JobPriority {
+    /** the user is actively waiting for the answer (hover, definition, commands) */
+    INTERACTIVE,
+    /** results for an open document (outline, lenses, inlay hints) */
+    VISIBLE_DOCUMENT,
+    /** type checking and summaries that run after a change */
+    BACKGROUND_CHECK,
+    /** indexing of the whole workspace */
+    INDEXING;
+
+    /**
+     * Does a job of this priority justify interrupting a running job of the other priority?
+     * Interactive jobs preempt all background work, visible documents only preempt indexing.
+     */
+    public boolean preempts(JobPriority running) {
+        switch (this) {
+            case INTERACTIVE: return running == BACKGROUND_CHECK || running == INDEXING;
+            case VISIBLE_DOCUMENT: return running == INDEXING;
+            default: return false;
+        }
+    }
+}
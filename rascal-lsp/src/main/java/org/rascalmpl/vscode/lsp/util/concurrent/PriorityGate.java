@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util.concurrent;
+
+import java.util.PriorityQueue;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A lock that lets only one job in at a time, and hands it to the most urgent waiting job first
+ * (and in order of arrival within the same priority).
+ *
+ * If a more urgent job arrives while a background job holds the gate, the preempt callback is called
+ * (for an evaluator this raises its interrupt flag, which it checks at its next interrupt point).
+ * The background job can then {@link #requeue(Ticket)} itself and run again after the urgent work.
+ * A single job is preempted at most {@value #MAX_PREEMPTIONS} times, so it cannot be starved.
+ *
+ * The acquired callback runs while the gate is handed to a job, under the same lock as the preemption decision,
+ * such that clearing a stale interrupt can never erase the preemption of the job that just got the gate.
+ */
+public class PriorityGate {
+    static final int MAX_PREEMPTIONS = 2;
+
+    private final Runnable preempt;
+    private final Runnable acquired;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private @Nullable Ticket running = null;
+    private long sequence = 0;
+
+    public PriorityGate(Runnable preempt) {
+        this(preempt, () -> {});
+    }
+
+    public PriorityGate(Runnable preempt, Runnable acquired) {
+        this.preempt = preempt;
+        this.acquired = acquired;
+    }
+
+    public static final class Ticket implements Comparable<Ticket> {
+        private final JobPriority priority;
+        private final long sequence;
+        private final long created = System.nanoTime();
+        private int preemptions = 0;
+        private boolean preempted = false;
+
+        private Ticket(JobPriority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public JobPriority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return nanoTime of the moment this job first asked for the gate
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int result = priority.compareTo(o.priority);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Block until this job is the most urgent one, and the gate is free.
+     */
+    public Ticket enter(JobPriority priority) throws InterruptedException {
+        synchronized (this) {
+            return acquire(new Ticket(priority, sequence++));
+        }
+    }
+
+    /**
+     * Leave the gate, and wait for our turn again (keeping our place in line).
+     * Only valid for the ticket that currently holds the gate.
+     */
+    public synchronized void requeue(Ticket ticket) throws InterruptedException {
+        leave(ticket);
+        acquire(ticket);
+    }
+
+    public synchronized void leave(Ticket ticket) {
+        if (running == ticket) {
+            running = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Block until at least this many jobs are waiting for the gate, such that tests (and tools) can
+     * observe the queue without polling.
+     */
+    public synchronized void awaitWaiting(int count) throws InterruptedException {
+        while (waiting.size() < count) {
+            wait();
+        }
+    }
+
+    /**
+     * @return true if the job was asked to step aside for a more urgent one
+     */
+    public synchronized boolean wasPreempted(Ticket ticket) {
+        return ticket.preempted;
+    }
+
+    private Ticket acquire(Ticket ticket) throws InterruptedException {
+        assert Thread.holdsLock(this);
+        waiting.add(ticket);
+        Ticket current = running;
+        if (current != null && !current.preempted && current.preemptions < MAX_PREEMPTIONS
+            && ticket.priority.preempts(current.priority)) {
+            current.preempted = true;
+            current.preemptions++;
+            preempt.run();
+        }
+        notifyAll(); // for awaitWaiting
+        try {
+            while (running != null || waiting.peek() != ticket) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        waiting.poll();
+        ticket.preempted = false;
+        running = ticket;
+        acquired.run();
+        return ticket;
+    }
+}
@@ -27,17 +27,55 @@
 package org.rascalmpl.vscode.lsp.util.locations;
 
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayLineOffsetMap;
 
 import io.usethesource.vallang.ISourceLocation;
 
+/**
+ * Column maps of files. For files that are open in the editor we keep the map of the current
+ * version of the document, and update it with the edits that come in, such that only the lines
+ * touched by an edit are scanned again. All other files are scanned on demand and cached for a while.
+ */
 public class ColumnMaps {
     private final LoadingCache<ISourceLocation, LineColumnOffsetMap> currentEntries;
+    private final Map<ISourceLocation, VersionedMap> openEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Source of the current contents of a range of lines of an open document
+     */
+    @FunctionalInterface
+    public interface LineContents {
+        /**
+         * @return the text of the lines <code>[fromLine, toLine]</code>, <code>toLine</code> can be <code>Integer.MAX_VALUE</code> for the rest of the document
+         */
+        String getLines(int fromLine, int toLine);
+    }
+
+    private static final class VersionedMap {
+        private final int version;
+        private final ArrayLineOffsetMap map;
+        /**
+         * the document might contain a \r that is not followed by a \n (old Mac line endings),
+         * only then an edit can glue a \n to the \r before it
+         */
+        private final boolean loneCarriageReturns;
+
+        VersionedMap(int version, ArrayLineOffsetMap map, boolean loneCarriageReturns) {
+            this.version = version;
+            this.map = map;
+            this.loneCarriageReturns = loneCarriageReturns;
+        }
+    }
 
     public ColumnMaps(Function<ISourceLocation, String> getContents) {
         currentEntries = Caffeine.newBuilder()
@@ -47,10 +85,133 @@ public class ColumnMaps {
     }
 
     public LineColumnOffsetMap get(ISourceLocation sloc) {
+        VersionedMap open = openEntries.get(sloc.top());
+        if (open != null) {
+            return open.map;
+        }
         return currentEntries.get(sloc.top());
     }
 
+    /**
+     * @return the document version the map of an open file belongs to, or -1 if the file is not open
+     */
+    public int getVersion(ISourceLocation sloc) {
+        VersionedMap open = openEntries.get(sloc.top());
+        return open == null ? -1 : open.version;
+    }
+
+    /**
+     * Start tracking a file that is opened in the editor
+     */
+    public void open(ISourceLocation file, int version, String contents) {
+        file = file.top();
+        openEntries.put(file, new VersionedMap(version, ArrayLineOffsetMap.build(contents), hasLoneCarriageReturn(contents)));
+        currentEntries.invalidate(file);
+    }
+
+    /**
+     * Apply the edits of a new version of an open file. The lines after an edit are only moved,
+     * the lines that are touched by one of the edits are scanned again after all edits are applied.
+     * @param contents the contents of the document <em>after</em> the edits
+     */
+    public void update(ISourceLocation file, int version, List<TextDocumentContentChangeEvent> changes, LineContents contents) {
+        file = file.top();
+        if (openEntries.computeIfPresent(file, (f, current) -> applyChanges(current, version, changes, contents)) == null) {
+            currentEntries.invalidate(file);
+        }
+    }
+
+    private static VersionedMap applyChanges(VersionedMap current, int version, List<TextDocumentContentChangeEvent> changes, LineContents contents) {
+        ArrayLineOffsetMap map = current.map;
+        boolean loneCarriageReturns = current.loneCarriageReturns;
+        // the lines (in the coordinates of the newest contents) that have to be scanned again
+        int dirtyFrom = Integer.MAX_VALUE;
+        int dirtyTo = -1;
+        for (TextDocumentContentChangeEvent change : changes) {
+            Range range = change.getRange();
+            String text = change.getText();
+            if (range == null) {
+                // full replacement, everything is dirty
+                dirtyFrom = 0;
+                dirtyTo = Integer.MAX_VALUE;
+                loneCarriageReturns = hasLoneCarriageReturn(text);
+                continue;
+            }
+            int start = range.getStart().getLine();
+            int end = Math.max(start, range.getEnd().getLine());
+            if (mightJoinLineBreaks(text, range, loneCarriageReturns)) {
+                // we cannot see the chars around the edit, so we do not know how many lines it adds, scan everything again
+                dirtyFrom = 0;
+                dirtyTo = Integer.MAX_VALUE;
+                loneCarriageReturns = true;
+                continue;
+            }
+            loneCarriageReturns |= hasLoneCarriageReturn(text);
+            int addedLines = countLineBreaks(text);
+            int delta = addedLines - (end - start);
+            map = map.shiftLines(start, end, delta);
+            if (dirtyTo >= 0) {
+                // move the earlier dirty lines along with this edit
+                dirtyFrom = moveLine(dirtyFrom, start, end, delta, start);
+                dirtyTo = moveLine(dirtyTo, start, end, delta, start + addedLines);
+            }
+            dirtyFrom = Math.min(dirtyFrom, start);
+            dirtyTo = Math.max(dirtyTo, start + addedLines);
+        }
+        if (dirtyTo >= 0) {
+            map = map.rescanLines(dirtyFrom, dirtyTo, contents.getLines(dirtyFrom, dirtyTo));
+        }
+        return new VersionedMap(version, map, loneCarriageReturns);
+    }
+
+    private static int moveLine(int line, int start, int end, int delta, int insideTarget) {
+        if (line < start || line == Integer.MAX_VALUE) {
+            return line;
+        }
+        if (line > end) {
+            return line + delta;
+        }
+        return insideTarget;
+    }
+
+    /**
+     * Count the line breaks like {@link ArrayLineOffsetMap} and {@link org.rascalmpl.vscode.lsp.util.PieceTable} do:
+     * \n, \r and \r\n are all a single line break
+     */
+    private static int countLineBreaks(String text) {
+        int result = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || (c == '\n' && (i == 0 || text.charAt(i - 1) != '\r'))) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Can the text form a \r\n pair with the chars around the edit? A trailing \r can pair with a \n after the edit,
+     * and at the start of a line, a leading \n (or the \n after an empty edit) can pair with a \r that ends the previous line.
+     */
+    private static boolean mightJoinLineBreaks(String text, Range range, boolean loneCarriageReturns) {
+        if (!text.isEmpty() && text.charAt(text.length() - 1) == '\r') {
+            return true;
+        }
+        return loneCarriageReturns && range.getStart().getLine() > 0 && range.getStart().getCharacter() == 0
+            && (text.isEmpty() || text.charAt(0) == '\n');
+    }
+
+    private static boolean hasLoneCarriageReturn(String text) {
+        for (int i = text.indexOf('\r'); i != -1; i = text.indexOf('\r', i + 1)) {
+            if (i + 1 == text.length() || text.charAt(i + 1) != '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void clear(ISourceLocation sloc) {
+        openEntries.remove(sloc.top());
         currentEntries.invalidate(sloc.top());
     }
 }
@@ -53,4 +53,13 @@ public interface IRangeMap<T> {
      * @return either the value or null if not found
      */
     @Nullable T lookup(Position at);
+
+    /**
+     * Lookup a cursor position packed by {@link PackedPositions}, and find the smallest range where it's contained in.
+     *
+     * @return either the value or null if not found
+     */
+    default @Nullable T lookup(long packedPosition) {
+        return lookup(PackedPositions.toPosition(packedPosition));
+    }
 }
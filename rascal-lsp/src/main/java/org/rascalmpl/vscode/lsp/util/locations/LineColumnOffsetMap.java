@@ -34,4 +34,15 @@ package org.rascalmpl.vscode.lsp.util.locations;
 public interface LineColumnOffsetMap {
     int translateColumn(int line, int column, boolean isEnd);
     int translateInverseColumn(int line, int column, boolean isEnd);
+
+    /**
+     * Translate a (codepoint) offset, for locations that only have an offset and length, to an LSP position.
+     * @return the position, packed by {@link PackedPositions}
+     */
+    long translateOffset(int offset, boolean isEnd);
+
+    /**
+     * Translate an LSP position back to a (codepoint) offset
+     */
+    int translateInverseOffset(int line, int character, boolean isEnd);
 }
@@ -35,6 +35,7 @@ import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
 import org.rascalmpl.uri.URIResolverRegistry;
 import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayRangeMap;
 import io.usethesource.vallang.ISourceLocation;
 
 public class Locations {
@@ -88,8 +89,21 @@ public class Locations {
         return toRange(sloc, cm.get(sloc));
     }
 
+    /**
+     * Add the range of the location to the builder, without creating LSP objects for it
+     */
+    public static <T> void putRange(ArrayRangeMap.Builder<T> target, ISourceLocation sloc, ColumnMaps cm, T value) {
+        if (hasPosition(sloc)) {
+            LineColumnOffsetMap map = cm.get(sloc);
+            target.put(toPackedPosition(sloc, map, false), toPackedPosition(sloc, map, true), value);
+        }
+        else {
+            target.put(0L, 0L, value);
+        }
+    }
+
     public static Range toRange(ISourceLocation sloc, LineColumnOffsetMap map) {
-        if (sloc.hasLineColumn()) {
+        if (hasPosition(sloc)) {
             return new Range(
                 toPosition(sloc, map, false),
                 toPosition(sloc, map, true)
@@ -109,10 +123,28 @@ public class Locations {
     }
 
     public static Position toPosition(ISourceLocation loc, LineColumnOffsetMap map, boolean atEnd) {
+        return PackedPositions.toPosition(toPackedPosition(loc, map, atEnd));
+    }
+
+    /**
+     * @return true if the location has line and column information, or at least an offset and length that can be translated to a position
+     */
+    public static boolean hasPosition(ISourceLocation loc) {
+        return loc.hasLineColumn() || loc.hasOffsetLength();
+    }
+
+    /**
+     * Translate the begin or end of the location to a position packed by {@link PackedPositions}, without allocating LSP objects.
+     * Locations without line and column information are translated via their offset.
+     */
+    public static long toPackedPosition(ISourceLocation loc, LineColumnOffsetMap map, boolean atEnd) {
+        if (!loc.hasLineColumn() && loc.hasOffsetLength()) {
+            return map.translateOffset(atEnd ? loc.getOffset() + loc.getLength() : loc.getOffset(), atEnd);
+        }
         var line = atEnd ? loc.getEndLine() : loc.getBeginLine();
         var column = atEnd? loc.getEndColumn() : loc.getBeginColumn();
         line -= 1; // lines in LSP are 0 based, IValue are 1 based
-        return new Position(line, map.translateColumn(line, column, atEnd));
+        return PackedPositions.pack(line, map.translateColumn(line, column, atEnd));
     }
 
 
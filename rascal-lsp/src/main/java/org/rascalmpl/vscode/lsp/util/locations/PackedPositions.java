@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util.locations;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * LSP positions packed in a single long: the (0 based) line in the upper 32 bits, the UTF-16 column in the lower 32 bits.
+ *
+ * The packed values are ordered the same way as the positions, so they can be compared directly.
+ * We use them for the internal indexes, and only create {@link Position} objects when we answer the client.
+ */
+public final class PackedPositions {
+    private PackedPositions() {}
+
+    public static long pack(int line, int character) {
+        return ((long) line << 32) | (character & 0xFFFF_FFFFL);
+    }
+
+    public static long pack(Position p) {
+        return pack(p.getLine(), p.getCharacter());
+    }
+
+    public static int line(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    public static int character(long packed) {
+        return (int) packed;
+    }
+
+    public static Position toPosition(long packed) {
+        return new Position(line(packed), character(packed));
+    }
+
+    public static Range toRange(long start, long end) {
+        return new Range(toPosition(start), toPosition(end));
+    }
+}
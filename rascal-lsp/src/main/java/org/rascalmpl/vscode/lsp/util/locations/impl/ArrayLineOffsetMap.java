@@ -29,21 +29,29 @@ package org.rascalmpl.vscode.lsp.util.locations.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.rascalmpl.vscode.lsp.util.locations.LineColumnOffsetMap;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
 
 public class ArrayLineOffsetMap implements LineColumnOffsetMap {
     private final IntArray lines;
     private final ArrayList<IntArray> wideColumnOffsets;
     private final ArrayList<IntArray> wideColumnOffsetsInverse;
+    /** (codepoint) offset of the start of every line, the first line always starts at 0 */
+    private final IntArray lineStarts;
 
-    public ArrayLineOffsetMap(IntArray lines, ArrayList<IntArray> wideColumnOffsets, ArrayList<IntArray> wideColumnOffsetsInverse) {
+    private ArrayLineOffsetMap(IntArray lines, ArrayList<IntArray> wideColumnOffsets, ArrayList<IntArray> wideColumnOffsetsInverse, IntArray lineStarts) {
         this.lines = lines;
         this.wideColumnOffsets = wideColumnOffsets;
         this.wideColumnOffsetsInverse = wideColumnOffsetsInverse;
+        this.lineStarts = lineStarts;
     }
 
     @Override
     public int translateColumn(int line, int column, boolean isEnd) {
+        if (lines.length == 0) {
+            return column; // no wide chars at all, like most files
+        }
         int lineIndex = lines.search(line);
         if (lineIndex < 0) {
             return column;
@@ -68,6 +76,9 @@ public class ArrayLineOffsetMap implements LineColumnOffsetMap {
 
     @Override
     public int translateInverseColumn(int line, int column, boolean isEnd) {
+        if (lines.length == 0) {
+            return column;
+        }
         int lineIndex = lines.search(line);
         if (lineIndex < 0) {
             return column;
@@ -75,76 +86,271 @@ public class ArrayLineOffsetMap implements LineColumnOffsetMap {
         return column - translateColumnForLine(wideColumnOffsetsInverse.get(lineIndex), column, isEnd);
     }
 
+    @Override
+    public long translateOffset(int offset, boolean isEnd) {
+        int line = lineStarts.search(Math.max(0, offset));
+        if (line < 0) {
+            // not the start of a line, so it's on the line before the insert point
+            line = -(line + 1) - 1;
+        }
+        return PackedPositions.pack(line, translateColumn(line, offset - lineStarts.data[line], isEnd));
+    }
+
+    @Override
+    public int translateInverseOffset(int line, int character, boolean isEnd) {
+        line = Math.max(0, Math.min(line, lineStarts.length - 1));
+        return lineStarts.data[line] + translateInverseColumn(line, character, isEnd);
+    }
 
-    @SuppressWarnings("java:S3776") // parsing tends to be complex
-    public static LineColumnOffsetMap build(String contents) {
-        int line = 0;
-        int column = 0;
-        char prev = '\0';
+    public static ArrayLineOffsetMap build(String contents) {
         GrowingIntArray linesWithSurrogate = new GrowingIntArray();
         ArrayList<IntArray> linesMap = new ArrayList<>(0);
         ArrayList<IntArray> inverseLinesMap = new ArrayList<>(0);
-        GrowingIntArray currentLine = new GrowingIntArray();
+        // sized for lines of about 40 chars, so that the scan does not have to grow it over and over
+        GrowingIntArray lineStarts = new GrowingIntArray(contents.length() / 40 + 1);
+        lineStarts.add(0);
+        scan(contents, 0, linesWithSurrogate, linesMap, inverseLinesMap, lineStarts);
+        return new ArrayLineOffsetMap(linesWithSurrogate.build(), linesMap, inverseLinesMap, lineStarts.build());
+    }
+
+    /**
+     * Drop the entries of the lines <code>[fromLine, toLine]</code>, and move the entries of all lines after <code>toLine</code> by <code>delta</code> lines.
+     * This is the effect of an edit on the lines after it, the replaced lines (<code>[fromLine, toLine + delta]</code> afterwards) have to be rescanned with {@link #rescanLines}.
+     * Until then the line starts of the lines after the edit still contain their old offsets.
+     */
+    public ArrayLineOffsetMap shiftLines(int fromLine, int toLine, int delta) {
+        GrowingIntArray linesWithSurrogate = new GrowingIntArray();
+        ArrayList<IntArray> linesMap = new ArrayList<>(wideColumnOffsets.size());
+        ArrayList<IntArray> inverseLinesMap = new ArrayList<>(wideColumnOffsets.size());
+        for (int i = 0; i < lines.length; i++) {
+            int line = lines.data[i];
+            if (line >= fromLine && line <= toLine) {
+                continue;
+            }
+            linesWithSurrogate.add(line > toLine ? line + delta : line);
+            linesMap.add(wideColumnOffsets.get(i));
+            inverseLinesMap.add(wideColumnOffsetsInverse.get(i));
+        }
+
+        GrowingIntArray newLineStarts = new GrowingIntArray();
+        int keep = Math.min(fromLine + 1, lineStarts.length);
+        newLineStarts.addAll(lineStarts, 0, keep);
+        // placeholders for the lines of the edit, they get their offsets from the rescan
+        for (int l = fromLine + 1; l <= toLine + delta; l++) {
+            newLineStarts.add(lineStarts.data[keep - 1]);
+        }
+        newLineStarts.addAll(lineStarts, Math.min(toLine + 1, lineStarts.length), lineStarts.length);
+        return new ArrayLineOffsetMap(linesWithSurrogate.build(), linesMap, inverseLinesMap, newLineStarts.build());
+    }
+
+    /**
+     * Replace the entries of the lines <code>[fromLine, toLine]</code> by a new scan of their contents,
+     * the offsets of the lines after it are moved by the difference in length.
+     * @param contents the text of the lines, starting at the beginning of <code>fromLine</code>, including the newline of <code>toLine</code> (if any)
+     */
+    public ArrayLineOffsetMap rescanLines(int fromLine, int toLine, String contents) {
+        fromLine = Math.min(fromLine, lineStarts.length - 1);
+        GrowingIntArray linesWithSurrogate = new GrowingIntArray();
+        ArrayList<IntArray> linesMap = new ArrayList<>();
+        ArrayList<IntArray> inverseLinesMap = new ArrayList<>();
+        int i = 0;
+        // copy the lines before the range
+        for (; i < lines.length && lines.data[i] < fromLine; i++) {
+            linesWithSurrogate.add(lines.data[i]);
+            linesMap.add(wideColumnOffsets.get(i));
+            inverseLinesMap.add(wideColumnOffsetsInverse.get(i));
+        }
+        GrowingIntArray scannedStarts = new GrowingIntArray();
+        scan(contents, fromLine, linesWithSurrogate, linesMap, inverseLinesMap, scannedStarts);
+        // skip the old entries of the range, and copy the lines after it
+        for (; i < lines.length; i++) {
+            if (lines.data[i] > toLine) {
+                linesWithSurrogate.add(lines.data[i]);
+                linesMap.add(wideColumnOffsets.get(i));
+                inverseLinesMap.add(wideColumnOffsetsInverse.get(i));
+            }
+        }
+
+        GrowingIntArray newLineStarts = new GrowingIntArray();
+        newLineStarts.addAll(lineStarts, 0, fromLine + 1);
+        int base = lineStarts.data[fromLine];
+        for (int l = 0; l < scannedStarts.filled; l++) {
+            newLineStarts.add(base + scannedStarts.data[l]);
+        }
+        boolean endsWithNewline = !contents.isEmpty() && (contents.charAt(contents.length() - 1) == '\n' || contents.charAt(contents.length() - 1) == '\r');
+        if (endsWithNewline && toLine < Integer.MAX_VALUE && toLine + 1 < lineStarts.length) {
+            // the last scanned line start is the old start of toLine + 1, the lines after it only move
+            int shift = newLineStarts.data[newLineStarts.filled - 1] - lineStarts.data[toLine + 1];
+            for (int l = toLine + 2; l < lineStarts.length; l++) {
+                newLineStarts.add(lineStarts.data[l] + shift);
+            }
+        }
+        return new ArrayLineOffsetMap(linesWithSurrogate.build(), linesMap, inverseLinesMap, newLineStarts.build());
+    }
+
+    /** chars checked for surrogate pairs at a time, a pair in one block does not slow down the rest of the file */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Scan contents that start at <code>firstLine</code>, register the lines that contain surrogate pairs,
+     * and the (codepoint) offset of every new line, relative to the start of the contents.
+     *
+     * The contents are checked in blocks for surrogate pairs, with {@link String#codePointCount}, which is free for
+     * Latin-1 strings (so pure ASCII files) and a tight loop otherwise. Blocks without pairs (almost all of them)
+     * only have to be searched for newlines, which {@link String#indexOf(int, int)} does a word at a time.
+     * Only blocks with pairs are walked char by char.
+     */
+    private static void scan(String contents, int firstLine, GrowingIntArray linesWithSurrogate, ArrayList<IntArray> linesMap, ArrayList<IntArray> inverseLinesMap, GrowingIntArray lineStarts) {
+        LineScanner scanner = new LineScanner(contents, firstLine, linesWithSurrogate, linesMap, inverseLinesMap, lineStarts);
+        int length = contents.length();
+        for (int from = 0; from < length;) {
+            int to = Math.min(length, from + BLOCK_SIZE);
+            if (to < length && Character.isHighSurrogate(contents.charAt(to - 1))) {
+                // keep surrogate pairs inside a single block
+                to--;
+            }
+            if (contents.codePointCount(from, to) == to - from) {
+                scanner.scanPlain(from, to);
+            }
+            else {
+                scanner.scanWithSurrogates(from, to);
+            }
+            from = to;
+        }
+        scanner.finish();
+    }
 
-        for(int i = 0, n = contents.length() ; i < n ; i++) {
-            char c = contents.charAt(i);
-            if (c == '\n' || c == '\r') {
-                if (c != prev && (prev == '\r' || prev == '\n')) {
-                    continue; // multichar newline skip it
+    /**
+     * The state of a scan, carried from one block to the next
+     */
+    private static final class LineScanner {
+        private final String contents;
+        private final GrowingIntArray linesWithSurrogate;
+        private final ArrayList<IntArray> linesMap;
+        private final ArrayList<IntArray> inverseLinesMap;
+        private final GrowingIntArray lineStarts;
+        private int line;
+        /** (codepoint) offset of the start of the current line */
+        private int lineStart = 0;
+        /** surrogate pairs seen so far, to translate char indexes into codepoint offsets */
+        private int pairs = 0;
+        /** only allocated for lines with a surrogate pair */
+        private @Nullable GrowingIntArray currentLine = null;
+        /** index of the next \n and \r (or the length if there is none), valid if they are not before the block */
+        private int nextLineFeed = -1;
+        private int nextCarriageReturn = -1;
+
+        LineScanner(String contents, int firstLine, GrowingIntArray linesWithSurrogate, ArrayList<IntArray> linesMap, ArrayList<IntArray> inverseLinesMap, GrowingIntArray lineStarts) {
+            this.contents = contents;
+            this.line = firstLine;
+            this.linesWithSurrogate = linesWithSurrogate;
+            this.linesMap = linesMap;
+            this.inverseLinesMap = inverseLinesMap;
+            this.lineStarts = lineStarts;
+        }
+
+        void scanPlain(int from, int to) {
+            while (true) {
+                if (nextLineFeed < from) {
+                    nextLineFeed = indexOf('\n', from);
                 }
-                if (!currentLine.isEmpty()) {
-                    linesWithSurrogate.add(line);
-                    linesMap.add(currentLine.build());
-                    inverseLinesMap.add(currentLine.buildInverse());
-                    currentLine = new GrowingIntArray();
+                if (nextCarriageReturn < from) {
+                    nextCarriageReturn = indexOf('\r', from);
                 }
-                line++;
-                column = 0;
+                int next = Math.min(nextLineFeed, nextCarriageReturn);
+                if (next >= to) {
+                    return;
+                }
+                newline(next);
+                from = next + 1;
             }
-            else {
-                column++;
-                if (Character.isHighSurrogate(c) && (i + 1) < n && Character.isLowSurrogate(contents.charAt(i + 1))) {
-                    // full surrogate pair, register it, and skip the next char
-                    currentLine.add(column);
+        }
+
+        private int indexOf(char c, int from) {
+            int result = contents.indexOf(c, from);
+            return result == -1 ? contents.length() : result;
+        }
+
+        void scanWithSurrogates(int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = contents.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    newline(i);
+                }
+                else if (Character.isHighSurrogate(c) && (i + 1) < to && Character.isLowSurrogate(contents.charAt(i + 1))) {
+                    // full surrogate pair, register its column, and skip the next char
+                    GrowingIntArray columns = currentLine;
+                    if (columns == null) {
+                        columns = new GrowingIntArray();
+                        currentLine = columns;
+                    }
+                    columns.add(i - pairs - lineStart + 1);
+                    pairs++;
                     i++;
                 }
             }
-            prev = c;
-        }
-        if (!currentLine.isEmpty()) {
-            // handle last line
-            linesWithSurrogate.add(line);
-            linesMap.add(currentLine.build());
-            inverseLinesMap.add(currentLine.buildInverse());
         }
-        if (linesMap.isEmpty()) {
-            return EMPTY_MAP;
+
+        private void newline(int index) {
+            lineStart = index + 1 - pairs;
+            if (contents.charAt(index) == '\n' && index > 0 && contents.charAt(index - 1) == '\r') {
+                // \r\n is a single newline (like LSP does), the line starts after the second char
+                lineStarts.setLast(lineStart);
+                return;
+            }
+            finishLine();
+            line++;
+            lineStarts.add(lineStart);
         }
-        return new ArrayLineOffsetMap(linesWithSurrogate.build(), linesMap, inverseLinesMap);
-    }
 
-    private static LineColumnOffsetMap EMPTY_MAP = new LineColumnOffsetMap(){
-        @Override
-        public int translateColumn(int line, int column, boolean atEnd) {
-            return column;
+        private void finishLine() {
+            GrowingIntArray columns = currentLine;
+            if (columns != null) {
+                addLine(line, columns, linesWithSurrogate, linesMap, inverseLinesMap);
+                currentLine = null;
+            }
         }
-        @Override
-        public int translateInverseColumn(int line, int column, boolean isEnd) {
-            return column;
+
+        void finish() {
+            // handle last line
+            finishLine();
         }
-    };
+    }
 
+    private static void addLine(int line, GrowingIntArray columns, GrowingIntArray linesWithSurrogate, ArrayList<IntArray> linesMap, ArrayList<IntArray> inverseLinesMap) {
+        linesWithSurrogate.add(line);
+        linesMap.add(columns.build());
+        inverseLinesMap.add(columns.buildInverse());
+    }
 
     private static class GrowingIntArray {
-        private int[] data = new int[0];
+        private int[] data;
         private int filled = 0;
 
+        public GrowingIntArray() {
+            this(0);
+        }
+
+        public GrowingIntArray(int capacity) {
+            data = new int[capacity];
+        }
+
         public void add(int v) {
             growIfNeeded();
             data[filled] = v;
             filled++;
         }
 
+        public void addAll(IntArray source, int from, int to) {
+            for (int i = from; i < to; i++) {
+                add(source.data[i]);
+            }
+        }
+
+        public void setLast(int v) {
+            data[filled - 1] = v;
+        }
+
         public IntArray buildInverse() {
             int[] result = new int[filled];
             for (int i = 0; i < filled; i++) {
@@ -153,18 +359,14 @@ public class ArrayLineOffsetMap implements LineColumnOffsetMap {
             return new IntArray(result, filled);
         }
 
-        public boolean isEmpty() {
-            return filled == 0;
-        }
-
         public IntArray build() {
             return new IntArray(data, filled);
         }
 
         private void growIfNeeded() {
             if (filled >= data.length) {
-                if (data.length == 0) {
-                    data = new int[4];
+                if (data.length < 4) {
+                    data = Arrays.copyOf(data, 4);
                 }
                 else {
                     data = Arrays.copyOf(data, data.length + (data.length / 2));
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rascalmpl.vscode.lsp.util.locations.impl;
+
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.rascalmpl.vscode.lsp.util.locations.IRangeMap;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
+
+/**
+ * Immutable range map, stored as a nested containment list in a couple of arrays.
+ *
+ * The ranges are sorted on their start (and reversed on their end), and every range
+ * gets the list of the ranges directly nested in it. Ranges in the same list never
+ * contain each other, so both their starts and their ends are increasing, and a binary search per
+ * level finds the only candidate that can contain the cursor. Lookups are O(depth * log(n)).
+ *
+ * Positions are stored packed in longs (see {@link PackedPositions}).
+ * Build it in bulk via a {@link Builder}.
+ */
+public class ArrayRangeMap<T> implements IRangeMap<T> {
+    private final long[] starts;
+    private final long[] ends;
+    private final Object[] values;
+    /** the nested ranges of range i are children[childOffsets[i]..childOffsets[i + 1]), the top level ranges are the ones of n */
+    private final int[] childOffsets;
+    private final int[] children;
+
+    private ArrayRangeMap(long[] starts, long[] ends, Object[] values, int[] childOffsets, int[] children) {
+        this.starts = starts;
+        this.ends = ends;
+        this.values = values;
+        this.childOffsets = childOffsets;
+        this.children = children;
+    }
+
+    @Override
+    public void put(Range area, T value) {
+        throw new UnsupportedOperationException("ArrayRangeMap is immutable, use the builder");
+    }
+
+    @Override
+    public @Nullable T lookup(Range from) {
+        return lookup(PackedPositions.pack(from.getStart()), PackedPositions.pack(from.getEnd()));
+    }
+
+    @Override
+    public @Nullable T lookup(Position at) {
+        return lookup(PackedPositions.pack(at));
+    }
+
+    @Override
+    public @Nullable T lookup(long packedPosition) {
+        return lookup(packedPosition, packedPosition);
+    }
+
+    /**
+     * Find the value of the smallest range that contains the packed from and to positions
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable T lookup(long from, long to) {
+        int match = -1;
+        int list = starts.length; // top level
+        while (true) {
+            int low = childOffsets[list];
+            int high = childOffsets[list + 1] - 1;
+            // find the last range in this list that starts before (or at) the cursor
+            int candidate = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[children[mid]] <= from) {
+                    candidate = children[mid];
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            // the earlier ranges in the list end before the candidate, so they cannot contain the cursor if it doesn't
+            if (candidate == -1 || ends[candidate] < to) {
+                return match == -1 ? null : (T) values[match];
+            }
+            match = candidate;
+            list = candidate;
+        }
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    public static class Builder<T> {
+        private long[] starts = new long[16];
+        private long[] ends = new long[16];
+        private Object[] values = new Object[16];
+        private int size = 0;
+
+        public Builder<T> put(Range area, T value) {
+            return put(PackedPositions.pack(area.getStart()), PackedPositions.pack(area.getEnd()), value);
+        }
+
+        /**
+         * Add a range with positions packed by {@link PackedPositions}
+         */
+        public Builder<T> put(long start, long end, T value) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        /**
+         * Build the map, where the last value wins for a range that was put more than once
+         */
+        public ArrayRangeMap<T> build() {
+            return build((a, b) -> b);
+        }
+
+        /**
+         * Build the map, combining the values of a range that was put more than once
+         */
+        @SuppressWarnings("unchecked")
+        public ArrayRangeMap<T> build(BinaryOperator<T> merge) {
+            // sort on start, and for the same start, the largest first, so that a range comes before the ones it contains
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int result = Long.compare(starts[a], starts[b]);
+                if (result == 0) {
+                    result = Long.compare(ends[b], ends[a]);
+                }
+                // stable for equal ranges, such that merging keeps the insertion order
+                return result == 0 ? Integer.compare(a, b) : result;
+            });
+
+            long[] newStarts = new long[size];
+            long[] newEnds = new long[size];
+            Object[] newValues = new Object[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int o = order[i];
+                if (n > 0 && newStarts[n - 1] == starts[o] && newEnds[n - 1] == ends[o]) {
+                    newValues[n - 1] = merge.apply((T) newValues[n - 1], (T) values[o]);
+                }
+                else {
+                    newStarts[n] = starts[o];
+                    newEnds[n] = ends[o];
+                    newValues[n] = values[o];
+                    n++;
+                }
+            }
+
+            // find the directly enclosing range of every range, the top level ones get n as their parent
+            int[] parents = new int[n];
+            int[] open = new int[n];
+            int openSize = 0;
+            int[] childCounts = new int[n + 2];
+            for (int i = 0; i < n; i++) {
+                while (openSize > 0 && newEnds[open[openSize - 1]] < newEnds[i]) {
+                    openSize--;
+                }
+                parents[i] = openSize > 0 ? open[openSize - 1] : n;
+                childCounts[parents[i] + 1]++;
+                open[openSize++] = i;
+            }
+            // prefix sum of the counts gives the offsets
+            int[] childOffsets = new int[n + 2];
+            for (int i = 1; i < n + 2; i++) {
+                childOffsets[i] = childOffsets[i - 1] + childCounts[i];
+            }
+            int[] fill = Arrays.copyOf(childOffsets, n + 1);
+            int[] children = new int[n];
+            for (int i = 0; i < n; i++) {
+                children[fill[parents[i]]++] = i;
+            }
+
+            return new ArrayRangeMap<>(
+                Arrays.copyOf(newStarts, n), Arrays.copyOf(newEnds, n), Arrays.copyOf(newValues, n),
+                childOffsets, children);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.library.util.PathConfig;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.IRascalValueFactory;
+import org.rascalmpl.vscode.lsp.rascal.model.CheckScheduler;
+import org.rascalmpl.vscode.lsp.util.concurrent.InterruptibleFuture;
+
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IValue;
+
+public class CheckSchedulerTests {
+    private static final IRascalValueFactory VF = IRascalValueFactory.getInstance();
+
+    private static final ISourceLocation A = VF.sourceLocation(URIUtil.assumeCorrect("file:///project/src/A.rsc"));
+    private static final ISourceLocation B = VF.sourceLocation(URIUtil.assumeCorrect("file:///project/src/B.rsc"));
+
+    /** a call to compileFileList, completed by the test */
+    private static class Check {
+        final List<ISourceLocation> files = new ArrayList<>();
+        final PathConfig pcfg;
+        final CompletableFuture<Map<ISourceLocation, ISet>> result = new CompletableFuture<>();
+        boolean interrupted = false;
+
+        Check(Iterable<IValue> files, PathConfig pcfg) {
+            files.forEach(f -> this.files.add((ISourceLocation) f));
+            this.pcfg = pcfg;
+        }
+    }
+
+    private final List<Check> checks = new ArrayList<>();
+    /** batches that are waiting for the end of their window, run by the test */
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<Map<ISourceLocation, ISet>> reported = new ArrayList<>();
+
+    private final CheckScheduler scheduler = new CheckScheduler((files, pcfg, exec) -> {
+        Check check = new Check(files, pcfg);
+        checks.add(check);
+        return new InterruptibleFuture<>(check.result, () -> check.interrupted = true);
+    }, Runnable::run, scheduled::add, reported::add);
+
+    private static PathConfig config(String project) throws IOException {
+        return new PathConfig().parse("pathConfig(srcs=[|file:///" + project + "/src|])");
+    }
+
+    private void endWindow() {
+        List<Runnable> todo = new ArrayList<>(scheduled);
+        scheduled.clear();
+        todo.forEach(Runnable::run);
+    }
+
+    private static ISet messages(int n) {
+        return VF.set(VF.integer(n));
+    }
+
+    @Test
+    void savesInWindowAreCheckedTogether() throws IOException {
+        PathConfig pcfg = config("project");
+        var first = scheduler.schedule(A, pcfg);
+        var second = scheduler.schedule(B, pcfg);
+        assertEquals(1, scheduled.size());
+
+        endWindow();
+        assertEquals(1, checks.size());
+        assertEquals(List.of(A, B), checks.get(0).files);
+
+        Map<ISourceLocation, ISet> result = Map.of(A, messages(1), B, messages(2));
+        checks.get(0).result.complete(result);
+        assertEquals(List.of(result), reported);
+        assertEquals(result, first.get().join());
+        assertEquals(result, second.get().join());
+    }
+
+    @Test
+    void saveAfterStartGoesToNextBatch() throws IOException {
+        PathConfig pcfg = config("project");
+        scheduler.schedule(A, pcfg);
+        endWindow();
+        scheduler.schedule(B, pcfg);
+        endWindow();
+
+        assertEquals(2, checks.size());
+        assertEquals(List.of(A), checks.get(0).files);
+        assertEquals(List.of(B), checks.get(1).files);
+    }
+
+    @Test
+    void batchesArePerPathConfig() throws IOException {
+        PathConfig first = config("first");
+        PathConfig second = config("second");
+        scheduler.schedule(A, first);
+        scheduler.schedule(B, second);
+        assertEquals(2, scheduled.size());
+
+        endWindow();
+        assertEquals(2, checks.size());
+        assertEquals(List.of(A), checks.get(0).files);
+        assertEquals(first, checks.get(0).pcfg);
+        assertEquals(List.of(B), checks.get(1).files);
+        assertEquals(second, checks.get(1).pcfg);
+    }
+
+    @Test
+    void batchIsSkippedWhenAllFilesAreDetachedBeforeStart() throws IOException {
+        var handle = scheduler.schedule(A, config("project"));
+        handle.interrupt();
+        endWindow();
+
+        assertTrue(checks.isEmpty());
+        assertTrue(reported.isEmpty());
+        assertEquals(Map.of(), handle.get().join());
+    }
+
+    @Test
+    void runningBatchIsInterruptedWhenAllHandlesAreDetached() throws IOException {
+        PathConfig pcfg = config("project");
+        var first = scheduler.schedule(A, pcfg);
+        var second = scheduler.schedule(A, pcfg);
+        endWindow();
+
+        first.interrupt();
+        assertFalse(checks.get(0).interrupted);
+        // interrupting the same handle twice does not detach another one
+        first.interrupt();
+        assertFalse(checks.get(0).interrupted);
+
+        second.interrupt();
+        assertTrue(checks.get(0).interrupted);
+        checks.get(0).result.complete(Map.of(A, messages(1)));
+        assertTrue(reported.isEmpty());
+    }
+
+    @Test
+    void supersededFilesAreNotReported() throws IOException {
+        PathConfig pcfg = config("project");
+        var superseded = scheduler.schedule(A, pcfg);
+        scheduler.schedule(B, pcfg);
+        endWindow();
+
+        superseded.interrupt();
+        assertFalse(checks.get(0).interrupted);
+        checks.get(0).result.complete(Map.of(A, messages(1), B, messages(2)));
+        assertEquals(List.of(Map.of(B, messages(2))), reported);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.services.LanguageClient;
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.vscode.lsp.util.DiagnosticsPublisher;
+
+public class DiagnosticsPublisherTests {
+    private static final String URI = "file:///tmp/Test.rsc";
+
+    private final List<PublishDiagnosticsParams> published = new ArrayList<>();
+    /** flushes that are waiting for their window, run by the test */
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final DiagnosticsPublisher publisher = new DiagnosticsPublisher(scheduled::add, scheduled::add);
+
+    DiagnosticsPublisherTests() {
+        publisher.setClient((LanguageClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { LanguageClient.class }, (proxy, method, args) -> {
+                if (method.getName().equals("publishDiagnostics")) {
+                    published.add((PublishDiagnosticsParams) args[0]);
+                }
+                return null;
+            }));
+    }
+
+    private static List<Diagnostic> error(String message) {
+        return Collections.singletonList(new Diagnostic(new Range(new Position(0, 0), new Position(0, 1)), message));
+    }
+
+    private void publish(List<Diagnostic> diagnostics) {
+        publisher.publish(URI, () -> new PublishDiagnosticsParams(URI, diagnostics));
+    }
+
+    private void endWindow() {
+        List<Runnable> todo = new ArrayList<>(scheduled);
+        scheduled.clear();
+        todo.forEach(Runnable::run);
+    }
+
+    @Test
+    void burstIsSentOnce() {
+        publish(error("first"));
+        publish(error("second"));
+        publish(error("third"));
+        assertEquals(0, published.size());
+        endWindow();
+
+        assertEquals(1, published.size());
+        assertEquals("third", published.get(0).getDiagnostics().get(0).getMessage());
+        assertEquals(2, publisher.getCoalescedCount());
+    }
+
+    @Test
+    void sameDiagnosticsAreNotSentAgain() {
+        publish(error("same"));
+        endWindow();
+        publish(error("same"));
+        endWindow();
+        publish(error("other"));
+        endWindow();
+
+        assertEquals(2, published.size());
+        assertEquals(2, publisher.getSentCount());
+        assertEquals(1, publisher.getSuppressedCount());
+    }
+
+    @Test
+    void sameHashIsSentAgain() {
+        // "Aa" and "BB" have the same hash code
+        publish(error("Aa"));
+        endWindow();
+        publish(error("BB"));
+        endWindow();
+
+        assertEquals(2, published.size());
+        assertEquals("BB", published.get(1).getDiagnostics().get(0).getMessage());
+    }
+
+    @Test
+    void forgottenFileIsSentAgain() {
+        publish(Collections.emptyList());
+        endWindow();
+        publisher.forget(URI);
+        publish(Collections.emptyList());
+        endWindow();
+
+        assertEquals(2, published.size());
+        assertEquals(Collections.emptyList(), published.get(1).getDiagnostics());
+    }
+}
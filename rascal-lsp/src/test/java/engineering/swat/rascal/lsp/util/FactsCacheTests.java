@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.vscode.lsp.util.FactsCache;
+
+public class FactsCacheTests {
+    /** like the facts of a file: pinned facts weigh nothing, the others weigh as much as their summary */
+    private static class Fact {
+        volatile boolean pinned;
+        final int size;
+
+        Fact(boolean pinned, int size) {
+            this.pinned = pinned;
+            this.size = size;
+        }
+
+        int weight() {
+            return pinned ? 0 : size;
+        }
+    }
+
+    // evictions run on the calling thread, so the tests can check them right away
+    private final FactsCache<String, Fact> facts = new FactsCache<>(10, Fact::weight, Runnable::run);
+
+    private Fact add(String file, boolean pinned, int size) {
+        return facts.get(file, f -> new Fact(pinned, size));
+    }
+
+    @Test
+    void pinnedFactsAreNeverEvicted() {
+        List<String> pinned = List.of("a", "b", "c", "d", "e");
+        pinned.forEach(f -> add(f, true, 8));
+        add("x", false, 6);
+        add("y", false, 6);
+
+        for (String f : pinned) {
+            assertTrue(facts.asMap().containsKey(f), f + " should be kept");
+        }
+        // only one of the others fits in the budget
+        assertEquals(6, facts.asMap().size());
+    }
+
+    @Test
+    void unpinnedFactIsEvictedOnceReweighed() {
+        Fact open = add("a", true, 8);
+        add("b", false, 8);
+        assertEquals("2 files, weight 8 of 10", facts.getFootprint());
+
+        open.pinned = false;
+        // until it is reweighed, the cache still uses the old weight
+        assertEquals("2 files, weight 8 of 10", facts.getFootprint());
+
+        facts.reweigh("a", open);
+        assertEquals(1, facts.asMap().size());
+        assertEquals("1 files, weight 8 of 10", facts.getFootprint());
+    }
+
+    @Test
+    void pinningAFactMakesRoomForOthers() {
+        Fact closed = add("a", false, 8);
+        closed.pinned = true;
+        facts.reweigh("a", closed);
+        add("b", false, 8);
+
+        assertTrue(facts.asMap().containsKey("a"));
+        assertTrue(facts.asMap().containsKey("b"));
+        assertEquals("2 files, weight 8 of 10", facts.getFootprint());
+    }
+
+    @Test
+    void reweighLeavesNewerFactAlone() {
+        Fact old = add("a", true, 3);
+        Fact current = new Fact(true, 3);
+        facts.asMap().put("a", current);
+
+        old.pinned = false;
+        facts.reweigh("a", old);
+        assertSame(current, facts.getIfPresent("a"));
+        assertEquals("1 files, weight 0 of 10", facts.getFootprint());
+
+        // nor does it bring back a fact that was removed
+        facts.asMap().remove("a");
+        facts.reweigh("a", current);
+        assertFalse(facts.asMap().containsKey("a"));
+    }
+}
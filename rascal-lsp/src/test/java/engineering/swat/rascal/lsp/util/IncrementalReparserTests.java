@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.library.lang.rascal.syntax.RascalParser;
+import org.rascalmpl.parser.Parser;
+import org.rascalmpl.parser.gtd.result.out.DefaultNodeFlattener;
+import org.rascalmpl.parser.uptr.UPTRNodeFactory;
+import org.rascalmpl.parser.uptr.action.NoActionExecutor;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.parsetrees.ITree;
+import org.rascalmpl.values.parsetrees.TreeAdapter;
+import org.rascalmpl.vscode.lsp.rascal.IncrementalReparser;
+
+import io.usethesource.vallang.ISourceLocation;
+import io.usethesource.vallang.IValue;
+
+public class IncrementalReparserTests {
+    private static final ISourceLocation FILE = URIUtil.rootLocation("memory");
+
+    private static final String MODULE =
+        "module Test\n"
+        + "\n"
+        + "int f() = 1;\n"
+        + "\n"
+        + "int g(int x) {\n"
+        + "  return x + 1;\n"
+        + "}\n"
+        + "\n"
+        + "int h() = 1 +\n"
+        + "  2; int k() = 4;\n"
+        + "\n"
+        + "int l() = 5;\n";
+
+    private static ITree parse(String contents) {
+        return new RascalParser().parse(Parser.START_MODULE, FILE.getURI(), contents.toCharArray(), new NoActionExecutor(),
+            new DefaultNodeFlattener<>(), new UPTRNodeFactory(true));
+    }
+
+    private static void collectLocations(ITree tree, List<ISourceLocation> target) {
+        ISourceLocation loc = TreeAdapter.getLocation(tree);
+        if (loc != null) {
+            target.add(loc);
+        }
+        if (tree.isAppl()) {
+            for (IValue arg : TreeAdapter.getArgs(tree)) {
+                collectLocations((ITree) arg, target);
+            }
+        }
+    }
+
+    private static void assertSameAsFullParse(String before, String after) {
+        ITree reparsed = IncrementalReparser.reparse(FILE, before, parse(before), after);
+        assertNotNull(reparsed, "edit should be reparsed incrementally");
+        ITree full = parse(after);
+        assertEquals(TreeAdapter.yield(full), TreeAdapter.yield(reparsed));
+        List<ISourceLocation> expected = new ArrayList<>();
+        collectLocations(full, expected);
+        List<ISourceLocation> actual = new ArrayList<>();
+        collectLocations(reparsed, actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i), "location " + i);
+        }
+    }
+
+    @Test
+    void changeWithinLine() {
+        assertSameAsFullParse(MODULE, MODULE.replace("x + 1;", "x + 100;"));
+    }
+
+    @Test
+    void insertLines() {
+        assertSameAsFullParse(MODULE, MODULE.replace("x + 1;", "x\n\n    + 1;"));
+    }
+
+    @Test
+    void deleteLines() {
+        assertSameAsFullParse(MODULE, MODULE.replace("{\n  return x + 1;\n}", "{ return x + 1; }"));
+    }
+
+    @Test
+    void sameLengthMovesColumnsOnLastLine() {
+        // the region keeps its length and lines, only the columns after it on its last line move
+        assertSameAsFullParse(MODULE, MODULE.replace("1 +\n  2;", "1\n  + 2;"));
+    }
+
+    @Test
+    void sameLengthChange() {
+        assertSameAsFullParse(MODULE, MODULE.replace("x + 1;", "x + 2;"));
+    }
+
+    @Test
+    void changeInRegionOfLastLine() {
+        assertSameAsFullParse(MODULE, MODULE.replace("int l() = 5;", "int l() = 5 + 6;"));
+    }
+}
@@ -28,8 +28,19 @@ package engineering.swat.rascal.lsp.util;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.junit.jupiter.api.Test;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.vscode.lsp.util.PieceTable;
+import org.rascalmpl.vscode.lsp.util.locations.ColumnMaps;
 import org.rascalmpl.vscode.lsp.util.locations.LineColumnOffsetMap;
+import org.rascalmpl.vscode.lsp.util.locations.PackedPositions;
 import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayLineOffsetMap;
 
 public class LineColumnOffsetMapTests {
@@ -56,6 +67,21 @@ public class LineColumnOffsetMapTests {
         assertEquals(8, map.translateColumn(0, 6, false));
     }
 
+    @Test
+    void emptyLineAfterCarriageReturn() {
+        LineColumnOffsetMap map = ArrayLineOffsetMap.build("12\r\n\n🎉4");
+        assertEquals(2, map.translateColumn(1, 2, false));
+        assertEquals(3, map.translateColumn(2, 2, false));
+    }
+
+    @Test
+    void wideCharsAfterLoneSurrogate() {
+        LineColumnOffsetMap map = ArrayLineOffsetMap.build("1234\n1\uD800🎉4\n\n🎉");
+        assertEquals(4, map.translateColumn(0, 4, false));
+        assertEquals(5, map.translateColumn(1, 4, false));
+        assertEquals(3, map.translateColumn(3, 2, false));
+    }
+
     @Test
     void noUnicodeCharsInverse() {
         LineColumnOffsetMap map = ArrayLineOffsetMap.build("1234\n1234");
@@ -79,4 +105,251 @@ public class LineColumnOffsetMapTests {
         assertEquals(6, map.translateInverseColumn(0, 8, false));
     }
 
+    @Test
+    void offsetToPosition() {
+        LineColumnOffsetMap map = ArrayLineOffsetMap.build("12\r\n🎉4\n\n5");
+        assertEquals(PackedPositions.pack(0, 2), map.translateOffset(2, false));
+        assertEquals(PackedPositions.pack(1, 0), map.translateOffset(4, false));
+        assertEquals(PackedPositions.pack(1, 3), map.translateOffset(6, true));
+        assertEquals(PackedPositions.pack(2, 0), map.translateOffset(7, false));
+        assertEquals(PackedPositions.pack(3, 0), map.translateOffset(8, false));
+    }
+
+    @Test
+    void positionToOffset() {
+        LineColumnOffsetMap map = ArrayLineOffsetMap.build("12\r\n🎉4\n\n5");
+        assertEquals(2, map.translateInverseOffset(0, 2, false));
+        assertEquals(5, map.translateInverseOffset(1, 2, false));
+        assertEquals(8, map.translateInverseOffset(3, 0, false));
+    }
+
+    @Test
+    void offsetsAfterEdit() {
+        LineColumnOffsetMap map = applyEdit("1🎉\n2\n3🎉", edit(0, 0, 1, 0, "ab"));
+        assertEquals(PackedPositions.pack(0, 2), map.translateOffset(2, false));
+        assertEquals(PackedPositions.pack(1, 3), map.translateOffset(6, true));
+        assertEquals(6, map.translateInverseOffset(1, 3, false));
+    }
+
+    private static TextDocumentContentChangeEvent edit(int startLine, int startChar, int endLine, int endChar, String text) {
+        return new TextDocumentContentChangeEvent(new Range(new Position(startLine, startChar), new Position(endLine, endChar)), text);
+    }
+
+    private static LineColumnOffsetMap applyEdit(String contents, TextDocumentContentChangeEvent change) {
+        var file = URIUtil.rootLocation("unknown");
+        var table = new PieceTable(contents);
+        var maps = new ColumnMaps(l -> { throw new AssertionError("open files should not be read again"); });
+        maps.open(file, 1, contents);
+        var range = change.getRange();
+        table.replace(range.getStart().getLine(), range.getStart().getCharacter(), range.getEnd().getLine(), range.getEnd().getCharacter(), change.getText());
+        maps.update(file, 2, List.of(change), linesOf(table));
+        assertEquals(2, maps.getVersion(file));
+        return maps.get(file);
+    }
+
+    private static ColumnMaps.LineContents linesOf(PieceTable table) {
+        return (from, to) -> {
+            int start = table.offsetOf(from, 0);
+            int end = to == Integer.MAX_VALUE ? table.length() : table.offsetOf(to + 1, 0);
+            return table.substring(start, end);
+        };
+    }
+
+    @Test
+    void insertCarriageReturnInLine() {
+        LineColumnOffsetMap map = applyEdit("12\n3🎉", edit(0, 1, 0, 1, "x\ry"));
+        assertEquals(PackedPositions.pack(2, 1), map.translateOffset(7, false));
+        assertSameMap(ArrayLineOffsetMap.build("1x\ry2\n3🎉"), map, "1x\ry2\n3🎉");
+    }
+
+    @Test
+    void newlineAfterCarriageReturn() {
+        LineColumnOffsetMap map = applyEdit("1\r2\n3🎉", edit(1, 0, 1, 0, "\n"));
+        assertEquals(PackedPositions.pack(2, 0), map.translateOffset(5, false));
+        assertSameMap(ArrayLineOffsetMap.build("1\r\n2\n3🎉"), map, "1\r\n2\n3🎉");
+    }
+
+    @Test
+    void randomEditsMatchFreshScan() {
+        Random r = new Random(11);
+        String[] fragments = { "a", "bc", "\n", "\r", "\r\n", "🎉" };
+        var file = URIUtil.rootLocation("unknown");
+        for (int round = 0; round < 300; round++) {
+            String contents = randomText(r, fragments, 20);
+            var table = new PieceTable(contents);
+            var maps = new ColumnMaps(l -> { throw new AssertionError("open files should not be read again"); });
+            maps.open(file, 0, contents);
+            for (int version = 1; version <= 5; version++) {
+                List<TextDocumentContentChangeEvent> changes = new ArrayList<>();
+                for (int i = 1 + r.nextInt(3); i > 0; i--) {
+                    String current = table.toString();
+                    int start = editBoundary(current, r.nextInt(current.length() + 1));
+                    int end = editBoundary(current, start + r.nextInt(current.length() - start + 1));
+                    Position from = positionOf(current, start);
+                    Position to = positionOf(current, Math.max(start, end));
+                    String text = randomText(r, fragments, 4);
+                    changes.add(new TextDocumentContentChangeEvent(new Range(from, to), text));
+                    table.replace(from.getLine(), from.getCharacter(), to.getLine(), to.getCharacter(), text);
+                }
+                maps.update(file, version, changes, linesOf(table));
+                assertSameMap(ArrayLineOffsetMap.build(table.toString()), maps.get(file), table.toString());
+            }
+        }
+    }
+
+    private static String randomText(Random r, String[] fragments, int maxFragments) {
+        StringBuilder result = new StringBuilder();
+        for (int i = r.nextInt(maxFragments); i > 0; i--) {
+            result.append(fragments[r.nextInt(fragments.length)]);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Positions cannot point inside a surrogate pair, or between the \r and \n of a line break
+     */
+    private static int editBoundary(String contents, int offset) {
+        if (offset > 0 && offset < contents.length()
+            && (Character.isLowSurrogate(contents.charAt(offset)) || (contents.charAt(offset) == '\n' && contents.charAt(offset - 1) == '\r'))) {
+            return offset - 1;
+        }
+        return offset;
+    }
+
+    private static Position positionOf(String contents, int offset) {
+        int line = 0;
+        int lineStart = 0;
+        for (int i = 0; i < offset; i++) {
+            char c = contents.charAt(i);
+            if (c == '\n' || (c == '\r' && (i + 1 == contents.length() || contents.charAt(i + 1) != '\n'))) {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return new Position(line, offset - lineStart);
+    }
+
+    private static void assertSameMap(LineColumnOffsetMap expected, LineColumnOffsetMap actual, String contents) {
+        String context = " in: " + contents.replace("\r", "\\r").replace("\n", "\\n");
+        int codepoints = contents.codePointCount(0, contents.length());
+        for (int offset = 0; offset <= codepoints + 1; offset++) {
+            assertEquals(expected.translateOffset(offset, false), actual.translateOffset(offset, false), "offset " + offset + context);
+            assertEquals(expected.translateOffset(offset, true), actual.translateOffset(offset, true), "end offset " + offset + context);
+        }
+        for (int line = 0; line <= contents.length() + 1; line++) {
+            for (int column = 0; column <= 8; column++) {
+                assertEquals(expected.translateColumn(line, column, false), actual.translateColumn(line, column, false), "column " + line + ":" + column + context);
+                assertEquals(expected.translateInverseColumn(line, column, true), actual.translateInverseColumn(line, column, true), "inverse column " + line + ":" + column + context);
+                assertEquals(expected.translateInverseOffset(line, column, false), actual.translateInverseOffset(line, column, false), "inverse offset " + line + ":" + column + context);
+            }
+        }
+    }
+
+    @Test
+    void insertLinesBeforeWideChar() {
+        LineColumnOffsetMap map = applyEdit("1234\n12🎉45", edit(0, 2, 0, 2, "a\nb\n"));
+        assertEquals(3, map.translateColumn(2, 3, false));
+        assertEquals(5, map.translateColumn(3, 4, false));
+    }
+
+    @Test
+    void removeWideCharByEdit() {
+        LineColumnOffsetMap map = applyEdit("12🎉45\n1234🎉\n🎉", edit(0, 2, 0, 4, "x"));
+        assertEquals(4, map.translateColumn(0, 4, false));
+        assertEquals(6, map.translateColumn(1, 5, true));
+        assertEquals(3, map.translateColumn(2, 2, false));
+    }
+
+    @Test
+    void joinLinesWithWideChars() {
+        LineColumnOffsetMap map = applyEdit("1🎉\n2🎉\n3🎉", edit(0, 3, 1, 0, ""));
+        assertEquals(7, map.translateColumn(0, 5, false));
+        assertEquals(4, map.translateColumn(1, 3, false));
+    }
+
+    @Test
+    void randomContentsMatchCharByCharScan() {
+        Random r = new Random(7);
+        String[] fragments = { "a", "bc", "\n", "\r", "\r\n", "🎉", "\uD800", "\uDC00", "𝄞x" };
+        for (int round = 0; round < 500; round++) {
+            StringBuilder contents = new StringBuilder();
+            for (int i = r.nextInt(40); i > 0; i--) {
+                contents.append(fragments[r.nextInt(fragments.length)]);
+            }
+            assertSameAsCharByCharScan(contents.toString());
+        }
+    }
+
+    @Test
+    void blockBoundariesMatchCharByCharScan() {
+        // the scan copies the contents in blocks of 4096 chars, so put pairs around the block edges
+        String[] fragments = { "\r\n", "🎉", "\uD800", "\uDC00", "\r", "\n\r" };
+        for (String fragment : fragments) {
+            for (int at = 4090; at <= 4098; at++) {
+                String filler = "ab\n".repeat(at / 3) + "a".repeat(at % 3);
+                assertSameAsCharByCharScan(filler + fragment + "cd\r\n🎉" + filler);
+            }
+        }
+    }
+
+    /**
+     * Compare the map with a straightforward walk over every char, that records for every line
+     * the (1-based) codepoint column of each surrogate pair, and the codepoint offset of its start.
+     */
+    private static void assertSameAsCharByCharScan(String contents) {
+        List<List<Integer>> wide = new ArrayList<>();
+        List<Integer> lineStarts = new ArrayList<>();
+        wide.add(new ArrayList<>());
+        lineStarts.add(0);
+        int codepoints = 0;
+        int column = 0;
+        for (int i = 0; i < contents.length(); i++) {
+            char c = contents.charAt(i);
+            if (c == '\r' || c == '\n') {
+                if (c == '\r' && i + 1 < contents.length() && contents.charAt(i + 1) == '\n') {
+                    i++;
+                    codepoints++;
+                }
+                codepoints++;
+                wide.add(new ArrayList<>());
+                lineStarts.add(codepoints);
+                column = 0;
+                continue;
+            }
+            codepoints++;
+            column++;
+            if (Character.isHighSurrogate(c) && i + 1 < contents.length() && Character.isLowSurrogate(contents.charAt(i + 1))) {
+                wide.get(wide.size() - 1).add(column);
+                i++;
+            }
+        }
+
+        LineColumnOffsetMap map = ArrayLineOffsetMap.build(contents);
+        String context = " in: " + contents.replace("\r", "\\r").replace("\n", "\\n");
+        for (int line = 0; line < wide.size(); line++) {
+            List<Integer> columns = wide.get(line);
+            for (int col = 0; col <= 45; col++) {
+                for (boolean isEnd : new boolean[] { false, true }) {
+                    int before = 0;
+                    int inverseBefore = 0;
+                    for (int w = 0; w < columns.size(); w++) {
+                        before += columns.get(w) < col || (isEnd && columns.get(w) == col) ? 1 : 0;
+                        int inverse = columns.get(w) + w;
+                        inverseBefore += inverse < col || (isEnd && inverse == col) ? 1 : 0;
+                    }
+                    assertEquals(col + before, map.translateColumn(line, col, isEnd), "column " + line + ":" + col + context);
+                    assertEquals(col - inverseBefore, map.translateInverseColumn(line, col, isEnd), "inverse column " + line + ":" + col + context);
+                }
+            }
+            assertEquals(lineStarts.get(line).intValue(), map.translateInverseOffset(line, 0, false), "line start " + line + context);
+        }
+        for (int offset = 0; offset <= codepoints; offset++) {
+            int line = wide.size() - 1;
+            while (lineStarts.get(line) > offset) {
+                line--;
+            }
+            long expected = PackedPositions.pack(line, map.translateColumn(line, offset - lineStarts.get(line), false));
+            assertEquals(expected, map.translateOffset(offset, false), "offset " + offset + context);
+        }
+    }
 }
@@ -26,11 +26,15 @@
  */
 package engineering.swat.rascal.lsp.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 import org.junit.jupiter.api.Test;
+import org.rascalmpl.vscode.lsp.util.locations.IRangeMap;
+import org.rascalmpl.vscode.lsp.util.locations.impl.ArrayRangeMap;
 import org.rascalmpl.vscode.lsp.util.locations.impl.TreeMapLookup;
 
 public class LookupTests {
@@ -121,4 +125,52 @@ public class LookupTests {
         assertSame("hit2", target.lookup(cursor(1,12)));
     }
 
+    private IRangeMap<String> buildNestedArrayLookup() {
+        return ArrayRangeMap.<String>builder()
+            .put(range(1, 0, 10, 1), "function")
+            .put(range(2, 4, 4, 5), "block")
+            .put(range(3, 8, 3, 12), "use")
+            .put(range(5, 4, 5, 9), "statement")
+            .put(range(12, 0, 12, 3), "other")
+            .build();
+    }
+
+    @Test
+    public void testArrayLookupOutside() {
+        IRangeMap<String> target = buildNestedArrayLookup();
+        assertNull(target.lookup(cursor(0, 3)));
+        assertNull(target.lookup(cursor(11, 0)));
+        assertNull(target.lookup(cursor(12, 4)));
+    }
+
+    @Test
+    public void testArrayLookupInnermost() {
+        IRangeMap<String> target = buildNestedArrayLookup();
+        assertSame("use", target.lookup(cursor(3, 8)));
+        assertSame("use", target.lookup(cursor(3, 12)));
+        assertSame("block", target.lookup(cursor(3, 13)));
+        assertSame("block", target.lookup(cursor(2, 4)));
+        assertSame("function", target.lookup(cursor(2, 3)));
+        assertSame("statement", target.lookup(cursor(5, 6)));
+        assertSame("function", target.lookup(cursor(6, 0)));
+        assertSame("other", target.lookup(cursor(12, 1)));
+    }
+
+    @Test
+    public void testArrayLookupSelection() {
+        IRangeMap<String> target = buildNestedArrayLookup();
+        assertSame("use", target.lookup(range(3, 9, 3, 11)));
+        assertSame("block", target.lookup(range(3, 9, 4, 1)));
+        assertSame("function", target.lookup(range(3, 9, 5, 5)));
+    }
+
+    @Test
+    public void testArrayLookupMergesSameRange() {
+        IRangeMap<String> target = ArrayRangeMap.<String>builder()
+            .put(range(1, 5, 1, 8), "a")
+            .put(range(1, 5, 1, 8), "b")
+            .build((a, b) -> a + b);
+        assertEquals("ab", target.lookup(cursor(1, 6)));
+    }
+
 }
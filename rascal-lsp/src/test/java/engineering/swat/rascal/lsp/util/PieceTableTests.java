@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.vscode.lsp.util.PieceTable;
+
+public class PieceTableTests {
+    @Test
+    void insertInMiddle() {
+        PieceTable table = new PieceTable("1234\n5678");
+        table.replace(0, 2, 0, 2, "ab");
+        assertEquals("12ab34\n5678", table.toString());
+    }
+
+    @Test
+    void replaceOnSecondLine() {
+        PieceTable table = new PieceTable("1234\n5678\n90");
+        table.replace(1, 1, 1, 3, "x");
+        assertEquals("1234\n5x8\n90", table.toString());
+    }
+
+    @Test
+    void deleteAcrossLines() {
+        PieceTable table = new PieceTable("1234\r\n5678\n90");
+        table.replace(0, 2, 2, 1, "");
+        assertEquals("120", table.toString());
+    }
+
+    @Test
+    void appendAtEnd() {
+        PieceTable table = new PieceTable("12\n34");
+        table.replace(1, 2, 1, 2, "\n56");
+        table.replace(2, 2, 2, 2, "7");
+        assertEquals("12\n34\n567", table.toString());
+        assertEquals(9, table.offsetOf(2, 3));
+    }
+
+    @Test
+    void offsetsAfterEdits() {
+        PieceTable table = new PieceTable("a\nb\nc");
+        table.replace(1, 0, 1, 0, "x\ny\n");
+        assertEquals("a\nx\ny\nb\nc", table.toString());
+        assertEquals(6, table.offsetOf(3, 0));
+        assertEquals(8, table.offsetOf(4, 0));
+    }
+
+    @Test
+    void manyEditsStayConsistent() {
+        StringBuilder expected = new StringBuilder("start\n");
+        PieceTable table = new PieceTable(expected.toString());
+        for (int i = 0; i < 5000; i++) {
+            String text = (i % 3 == 0) ? "line " + i + "\n" : "" + i;
+            int offset = table.length();
+            table.replace(offset, offset, text);
+            expected.append(text);
+        }
+        table.replace(0, 6, "");
+        expected.delete(0, 6);
+        assertEquals(expected.toString(), table.toString());
+    }
+
+    @Test
+    void characterClampedToLine() {
+        PieceTable table = new PieceTable("ab\ncd\r\nef");
+        assertEquals(2, table.offsetOf(0, 10));
+        assertEquals(5, table.offsetOf(1, 3));
+        assertEquals(9, table.offsetOf(2, 10));
+        table.replace(0, 1, 0, 99, "X");
+        assertEquals("aX\ncd\r\nef", table.toString());
+    }
+
+    @Test
+    void allLineBreaks() {
+        PieceTable table = new PieceTable("a\rb\r\nc\nd");
+        assertEquals(2, table.offsetOf(1, 0));
+        assertEquals(5, table.offsetOf(2, 0));
+        assertEquals(7, table.offsetOf(3, 0));
+        assertEquals(8, table.length());
+        table.replace(1, 0, 1, 1, "x\ry");
+        assertEquals("a\rx\ry\r\nc\nd", table.toString());
+        assertEquals(4, table.offsetOf(2, 0));
+        assertEquals(9, table.offsetOf(4, 0));
+    }
+
+    @Test
+    void splitAndJoinCarriageReturnNewline() {
+        PieceTable table = new PieceTable("a\r\nb");
+        table.replace(2, 2, "x");
+        assertEquals("a\rx\nb", table.toString());
+        assertEquals(2, table.offsetOf(1, 0));
+        assertEquals(4, table.offsetOf(2, 0));
+        table.replace(2, 3, "");
+        assertEquals("a\r\nb", table.toString());
+        assertEquals(1, table.offsetOf(0, 5));
+        assertEquals(3, table.offsetOf(1, 0));
+        assertEquals(4, table.offsetOf(2, 0));
+    }
+
+    @Test
+    void newlineAppendedAfterCarriageReturn() {
+        PieceTable table = new PieceTable("a");
+        table.replace(1, 1, "\r");
+        table.replace(2, 2, "\nb");
+        assertEquals("a\r\nb", table.toString());
+        assertEquals(3, table.offsetOf(1, 0));
+        assertEquals(4, table.offsetOf(2, 0));
+    }
+
+    @Test
+    void randomEditsMatchFullScan() {
+        Random r = new Random(42);
+        String[] fragments = { "a", "bc", "\n", "\r", "\r\n", "x\ry", "\n\n" };
+        StringBuilder expected = new StringBuilder("start\r\nline\n");
+        PieceTable table = new PieceTable(expected.toString());
+        for (int i = 0; i < 2000; i++) {
+            int start = r.nextInt(expected.length() + 1);
+            int end = Math.min(expected.length(), start + r.nextInt(3));
+            String text = r.nextInt(4) == 0 ? "" : fragments[r.nextInt(fragments.length)];
+            table.replace(start, end, text);
+            expected.replace(start, end, text);
+            for (int line = 0; line < 6; line++) {
+                int character = r.nextInt(6);
+                assertEquals(offsetOf(expected.toString(), line, character), table.offsetOf(line, character), "line " + line + " character " + character + " in: " + expected);
+            }
+        }
+        assertEquals(expected.toString(), table.toString());
+    }
+
+    private static int offsetOf(String contents, int line, int character) {
+        int offset = 0;
+        for (int l = 0; l < line; l++) {
+            while (offset < contents.length() && contents.charAt(offset) != '\n' && contents.charAt(offset) != '\r') {
+                offset++;
+            }
+            if (offset == contents.length()) {
+                return offset;
+            }
+            if (contents.startsWith("\r\n", offset)) {
+                offset++;
+            }
+            offset++;
+        }
+        for (int c = 0; c < character && offset < contents.length() && contents.charAt(offset) != '\n' && contents.charAt(offset) != '\r'; c++) {
+            offset++;
+        }
+        return offset;
+    }
+}
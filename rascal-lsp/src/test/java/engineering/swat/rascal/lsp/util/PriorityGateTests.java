@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.vscode.lsp.util.concurrent.JobPriority;
+import org.rascalmpl.vscode.lsp.util.concurrent.PriorityGate;
+
+public class PriorityGateTests {
+
+    private static void waitFor(PriorityGate gate, JobPriority priority, List<JobPriority> order, CountDownLatch done) {
+        Thread t = new Thread(() -> {
+            try {
+                PriorityGate.Ticket ticket = gate.enter(priority);
+                order.add(priority);
+                gate.leave(ticket);
+                done.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.start();
+    }
+
+    @Test
+    void mostUrgentJobGoesFirst() throws InterruptedException {
+        PriorityGate gate = new PriorityGate(() -> {});
+        List<JobPriority> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+
+        PriorityGate.Ticket holder = gate.enter(JobPriority.VISIBLE_DOCUMENT);
+        waitFor(gate, JobPriority.INDEXING, order, done);
+        gate.awaitWaiting(1);
+        waitFor(gate, JobPriority.BACKGROUND_CHECK, order, done);
+        gate.awaitWaiting(2);
+        waitFor(gate, JobPriority.INTERACTIVE, order, done);
+        gate.awaitWaiting(3);
+        gate.leave(holder);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(JobPriority.INTERACTIVE, JobPriority.BACKGROUND_CHECK, JobPriority.INDEXING), order);
+    }
+
+    @Test
+    void interactiveJobPreemptsBackgroundJob() throws InterruptedException {
+        CountDownLatch preempted = new CountDownLatch(1);
+        PriorityGate gate = new PriorityGate(preempted::countDown);
+        List<JobPriority> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        PriorityGate.Ticket check = gate.enter(JobPriority.BACKGROUND_CHECK);
+        waitFor(gate, JobPriority.INTERACTIVE, order, done);
+        assertTrue(preempted.await(5, TimeUnit.SECONDS));
+        assertTrue(gate.wasPreempted(check));
+
+        gate.requeue(check);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(JobPriority.INTERACTIVE), order);
+        assertFalse(gate.wasPreempted(check));
+        gate.leave(check);
+    }
+
+    @Test
+    void preemptionRightAfterHandOverIsKept() throws InterruptedException {
+        // stands in for the interrupt flag of an evaluator
+        AtomicBoolean interrupt = new AtomicBoolean(false);
+        PriorityGate gate = new PriorityGate(() -> interrupt.set(true), () -> interrupt.set(false));
+        CountDownLatch done = new CountDownLatch(1);
+
+        PriorityGate.Ticket previous = gate.enter(JobPriority.INDEXING);
+        interrupt.set(true); // a stale interrupt, left over from the previous job
+        PriorityGate.Ticket[] check = new PriorityGate.Ticket[1];
+        CountDownLatch entered = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                check[0] = gate.enter(JobPriority.BACKGROUND_CHECK);
+                entered.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        t.start();
+        gate.awaitWaiting(1);
+        gate.leave(previous);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertFalse(interrupt.get());
+
+        // the urgent job arrives as soon as the check got the gate, before it started running
+        waitFor(gate, JobPriority.INTERACTIVE, new ArrayList<>(), done);
+        gate.awaitWaiting(1);
+        assertTrue(interrupt.get());
+        assertTrue(gate.wasPreempted(check[0]));
+
+        gate.requeue(check[0]);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(interrupt.get());
+        gate.leave(check[0]);
+    }
+
+    @Test
+    void visibleDocumentDoesNotPreemptChecks() throws InterruptedException {
+        AtomicInteger preempted = new AtomicInteger();
+        PriorityGate gate = new PriorityGate(preempted::incrementAndGet);
+        CountDownLatch done = new CountDownLatch(1);
+
+        PriorityGate.Ticket check = gate.enter(JobPriority.BACKGROUND_CHECK);
+        waitFor(gate, JobPriority.VISIBLE_DOCUMENT, new ArrayList<>(), done);
+        // the preemption decision is made before the job shows up in the queue
+        gate.awaitWaiting(1);
+        assertEquals(0, preempted.get());
+        gate.leave(check);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void backgroundJobIsNotStarved() throws InterruptedException {
+        AtomicInteger preempted = new AtomicInteger();
+        PriorityGate gate = new PriorityGate(preempted::incrementAndGet);
+
+        PriorityGate.Ticket indexing = gate.enter(JobPriority.INDEXING);
+        CountDownLatch done = new CountDownLatch(1);
+        waitFor(gate, JobPriority.INTERACTIVE, new ArrayList<>(), done);
+        gate.awaitWaiting(1);
+        while (gate.wasPreempted(indexing)) {
+            gate.requeue(indexing);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            done = new CountDownLatch(1);
+            waitFor(gate, JobPriority.INTERACTIVE, new ArrayList<>(), done);
+            gate.awaitWaiting(1);
+        }
+        assertEquals(2, preempted.get());
+        assertEquals(1, done.getCount());
+        gate.leave(indexing);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
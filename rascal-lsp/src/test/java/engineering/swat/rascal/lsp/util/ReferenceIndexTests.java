@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.IRascalValueFactory;
+import org.rascalmpl.vscode.lsp.rascal.model.ReferenceIndex;
+
+import io.usethesource.vallang.ISet;
+import io.usethesource.vallang.ISetWriter;
+import io.usethesource.vallang.ISourceLocation;
+
+public class ReferenceIndexTests {
+    private static final IRascalValueFactory VF = IRascalValueFactory.getInstance();
+
+    private static final ISourceLocation A = VF.sourceLocation(URIUtil.assumeCorrect("file:///project/A.rsc"));
+    private static final ISourceLocation B = VF.sourceLocation(URIUtil.assumeCorrect("file:///project/B.rsc"));
+    private static final ISourceLocation C = VF.sourceLocation(URIUtil.assumeCorrect("file:///project/C.rsc"));
+
+    private static final ISourceLocation F = VF.sourceLocation(A, 10, 1);
+    private static final ISourceLocation G = VF.sourceLocation(A, 20, 1);
+
+    private static ISourceLocation use(ISourceLocation module, int offset) {
+        return VF.sourceLocation(module, offset, 1);
+    }
+
+    private static ISet useDef(ISourceLocation... pairs) {
+        ISetWriter result = VF.setWriter();
+        for (int i = 0; i < pairs.length; i += 2) {
+            result.insert(VF.tuple(pairs[i], pairs[i + 1]));
+        }
+        return result.done();
+    }
+
+    private static Set<ISourceLocation> set(List<ISourceLocation> locs) {
+        return new HashSet<>(locs);
+    }
+
+    @Test
+    void usesAreFoundByDefinition() {
+        ReferenceIndex index = new ReferenceIndex();
+        index.update(B, useDef(use(B, 1), F, use(B, 5), F, use(B, 9), G));
+
+        assertTrue(index.contains(B));
+        assertEquals(Set.of(use(B, 1), use(B, 5)), set(index.getReferences(F)));
+        assertEquals(List.of(use(B, 9)), index.getReferences(G));
+        assertEquals(Set.of(F, G), index.getDefinitionsIn(A));
+    }
+
+    @Test
+    void droppedDefinitionDisappearsAfterUpdate() {
+        ReferenceIndex index = new ReferenceIndex();
+        index.update(B, useDef(use(B, 1), F, use(B, 9), G));
+        index.update(B, useDef(use(B, 3), F));
+
+        assertEquals(List.of(use(B, 3)), index.getReferences(F));
+        assertTrue(index.getReferences(G).isEmpty());
+        assertEquals(Set.of(F), index.getDefinitionsIn(A));
+    }
+
+    @Test
+    void removeDropsAllUsesOfModule() {
+        ReferenceIndex index = new ReferenceIndex();
+        index.update(B, useDef(use(B, 1), F, use(B, 9), G));
+        index.remove(B);
+
+        assertFalse(index.contains(B));
+        assertTrue(index.getReferences(F).isEmpty());
+        assertTrue(index.getReferences(G).isEmpty());
+        assertTrue(index.getDefinitionsIn(A).isEmpty());
+    }
+
+    @Test
+    void definitionUsedByMultipleModules() {
+        ReferenceIndex index = new ReferenceIndex();
+        index.update(B, useDef(use(B, 1), F));
+        index.update(C, useDef(use(C, 2), F, use(C, 7), G));
+
+        assertEquals(Set.of(use(B, 1), use(C, 2)), set(index.getReferences(F)));
+        assertEquals(Set.of(F, G), index.getDefinitionsIn(A));
+
+        // the definition stays known as long as one module still uses it
+        index.update(B, useDef());
+        assertEquals(List.of(use(C, 2)), index.getReferences(F));
+        assertEquals(Set.of(F, G), index.getDefinitionsIn(A));
+
+        index.remove(C);
+        assertTrue(index.getReferences(F).isEmpty());
+        assertTrue(index.getDefinitionsIn(A).isEmpty());
+    }
+
+    @Test
+    void removeIfOnlyDropsMatchingModules() {
+        ReferenceIndex index = new ReferenceIndex();
+        index.update(B, useDef(use(B, 1), F));
+        index.update(C, useDef(use(C, 2), F));
+        index.removeIf(C::equals);
+
+        assertTrue(index.contains(B));
+        assertFalse(index.contains(C));
+        assertEquals(List.of(use(B, 1)), index.getReferences(F));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.library.lang.rascal.syntax.RascalParser;
+import org.rascalmpl.parser.Parser;
+import org.rascalmpl.parser.gtd.result.out.DefaultNodeFlattener;
+import org.rascalmpl.parser.uptr.UPTRNodeFactory;
+import org.rascalmpl.parser.uptr.action.NoActionExecutor;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.parsetrees.ITree;
+import org.rascalmpl.vscode.lsp.util.SemanticTokenizer;
+
+import io.usethesource.vallang.ISourceLocation;
+
+public class SemanticTokenizerTests {
+    private static final ISourceLocation FILE = URIUtil.rootLocation("memory");
+
+    private static final String MODULE =
+        "module Test\n"
+        + "\n"
+        + "import IO;\n"
+        + "\n"
+        + "/* a comment\n"
+        + "   over multiple lines */\n"
+        + "int f() = 1;\n"
+        + "\n"
+        + "str g(int x) {\n"
+        + "  return \"<x> 𝄞 and \n"
+        + "         'more\";\n"
+        + "}\n"
+        + "\n"
+        + "// 𝄞𝄞 before the keywords\n"
+        + "bool h() = true && false;\n";
+
+    private static ITree parse(String contents) {
+        return new RascalParser().parse(Parser.START_MODULE, FILE.getURI(), contents.toCharArray(), new NoActionExecutor(),
+            new DefaultNodeFlattener<>(), new UPTRNodeFactory(true));
+    }
+
+    private static List<Integer> apply(List<Integer> previous, List<SemanticTokensEdit> edits) {
+        List<Integer> result = new ArrayList<>(previous);
+        // edits are relative to the previous result, so we apply them from the back
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            SemanticTokensEdit edit = edits.get(i);
+            result.subList(edit.getStart(), edit.getStart() + edit.getDeleteCount()).clear();
+            if (edit.getData() != null) {
+                result.addAll(edit.getStart(), edit.getData());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    void deltaOfUnchangedDocumentIsEmpty() {
+        SemanticTokenizer tokenizer = new SemanticTokenizer();
+        ITree tree = parse(MODULE);
+        SemanticTokens full = tokenizer.semanticTokensFull(FILE, tree);
+        Either<SemanticTokens, SemanticTokensDelta> delta = tokenizer.semanticTokensFullDelta(FILE, full.getResultId(), tree);
+        assertTrue(delta.isRight());
+        assertTrue(delta.getRight().getEdits().isEmpty());
+        assertEquals(full.getData(), apply(full.getData(), delta.getRight().getEdits()));
+    }
+
+    @Test
+    void deltaOfEditInTheMiddle() {
+        SemanticTokenizer tokenizer = new SemanticTokenizer();
+        SemanticTokens previous = tokenizer.semanticTokensFull(FILE, parse(MODULE));
+        ITree changed = parse(MODULE.replace("int f() = 1;", "int f() = 1 + 2;\nint f2() = f();"));
+        Either<SemanticTokens, SemanticTokensDelta> delta = tokenizer.semanticTokensFullDelta(FILE, previous.getResultId(), changed);
+        assertTrue(delta.isRight());
+        assertNotEquals(previous.getResultId(), delta.getRight().getResultId());
+        List<Integer> expected = new SemanticTokenizer().semanticTokensFull(FILE, changed).getData();
+        assertEquals(expected, apply(previous.getData(), delta.getRight().getEdits()));
+    }
+
+    @Test
+    void deltaAgainstUnknownResultIsFull() {
+        SemanticTokenizer tokenizer = new SemanticTokenizer();
+        ITree tree = parse(MODULE);
+        SemanticTokens first = tokenizer.semanticTokensFull(FILE, tree);
+        tokenizer.semanticTokensFull(FILE, tree);
+        List<Integer> expected = new SemanticTokenizer().semanticTokensFull(FILE, tree).getData();
+
+        Either<SemanticTokens, SemanticTokensDelta> unknown = tokenizer.semanticTokensFullDelta(FILE, "unknown", tree);
+        assertTrue(unknown.isLeft());
+        assertEquals(expected, unknown.getLeft().getData());
+
+        // only the newest result is remembered
+        Either<SemanticTokens, SemanticTokensDelta> stale = tokenizer.semanticTokensFullDelta(FILE, first.getResultId(), tree);
+        assertTrue(stale.isLeft());
+        assertEquals(expected, stale.getLeft().getData());
+    }
+
+    /**
+     * The tokens of the full result that start on the lines of the range, encoded as if they were the only tokens
+     */
+    private static List<Integer> slice(List<Integer> full, Range range) {
+        List<Integer> result = new ArrayList<>();
+        int line = 0;
+        int start = 0;
+        int previousLine = 0;
+        int previousStart = 0;
+        for (int i = 0; i < full.size(); i += 5) {
+            line += full.get(i);
+            start = full.get(i) == 0 ? start + full.get(i + 1) : full.get(i + 1);
+            if (line >= range.getStart().getLine() && line <= range.getEnd().getLine()) {
+                result.add(line - previousLine);
+                result.add(line == previousLine ? start - previousStart : start);
+                result.addAll(full.subList(i + 2, i + 5));
+                previousLine = line;
+                previousStart = start;
+            }
+        }
+        return result;
+    }
+
+    private static void assertRangeIsSliceOfFull(String contents, Range range) {
+        ITree tree = parse(contents);
+        List<Integer> full = new SemanticTokenizer().semanticTokensFull(FILE, tree).getData();
+        assertEquals(slice(full, range), new SemanticTokenizer().semanticTokensRange(range, tree).getData(), "range " + range);
+    }
+
+    private static Range range(int startLine, int startCharacter, int endLine, int endCharacter) {
+        return new Range(new Position(startLine, startCharacter), new Position(endLine, endCharacter));
+    }
+
+    @Test
+    void rangeOfWholeDocument() {
+        assertRangeIsSliceOfFull(MODULE, range(0, 0, 15, 0));
+    }
+
+    @Test
+    void rangeStartingInsideMultiLineComment() {
+        assertRangeIsSliceOfFull(MODULE, range(5, 3, 7, 0));
+    }
+
+    @Test
+    void rangeStartingInsideMultiLineString() {
+        assertRangeIsSliceOfFull(MODULE, range(10, 4, 12, 0));
+        assertRangeIsSliceOfFull(MODULE, range(8, 0, 9, 5));
+    }
+
+    @Test
+    void rangeWithSupplementaryCharacters() {
+        assertRangeIsSliceOfFull(MODULE, range(9, 0, 9, 20));
+        assertRangeIsSliceOfFull(MODULE, range(13, 2, 14, 3));
+        assertRangeIsSliceOfFull(MODULE, range(14, 0, 14, 10));
+    }
+
+    @Test
+    void parallelTokensAreSequentialTokens() {
+        StringBuilder contents = new StringBuilder("module Big\n\n");
+        for (int i = 0; contents.length() < 200_000; i++) {
+            contents.append("/* function ").append(i).append("\n   𝄞 */\n");
+            contents.append("str f").append(i).append("(int x) = \"<x> is ").append(i).append("\";\n");
+            contents.append("bool g").append(i).append("() = true && false; // trailing\n\n");
+        }
+        ITree tree = parse(contents.toString());
+        List<Integer> sequential = new SemanticTokenizer(Integer.MAX_VALUE).semanticTokensFull(FILE, tree).getData();
+        List<Integer> parallel = new SemanticTokenizer(0).semanticTokensFull(FILE, tree).getData();
+        assertTrue(sequential.size() > 1000);
+        assertEquals(sequential, parallel);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018-2021, NWO-I CWI and Swat.engineering
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package engineering.swat.rascal.lsp.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.rascalmpl.uri.URIUtil;
+import org.rascalmpl.values.IRascalValueFactory;
+import org.rascalmpl.values.parsetrees.ITree;
+import org.rascalmpl.vscode.lsp.TextDocumentState;
+
+public class TextDocumentStateTests {
+    private static final IRascalValueFactory VF = IRascalValueFactory.getInstance();
+
+    /** parses that are started, completed by the test */
+    private final List<String> parsed = new ArrayList<>();
+    private final List<CompletableFuture<ITree>> parses = new ArrayList<>();
+    /** parses that are waiting for their quiet period, run by the test */
+    private final List<Runnable> scheduled = new ArrayList<>();
+
+    private TextDocumentState build(String contents) {
+        return new TextDocumentState((l, s) -> {
+            parsed.add(s);
+            CompletableFuture<ITree> result = new CompletableFuture<>();
+            parses.add(result);
+            return result;
+        }, null, URIUtil.rootLocation("memory"), 1, contents, scheduled::add);
+    }
+
+    private void endQuietPeriod() {
+        List<Runnable> todo = new ArrayList<>(scheduled);
+        scheduled.clear();
+        todo.forEach(Runnable::run);
+    }
+
+    private void finishParse(int index) {
+        parses.get(index).complete(VF.character(index));
+    }
+
+    @Test
+    void burstIsParsedOnce() {
+        TextDocumentState state = build("a");
+        finishParse(0);
+        CompletableFuture<ITree> first = state.update(2, "ab");
+        CompletableFuture<ITree> second = state.update(3, "abc");
+        CompletableFuture<ITree> third = state.update(4, "abcd");
+        assertSame(first, second);
+        assertSame(first, third);
+
+        endQuietPeriod();
+        assertEquals(List.of("a", "abcd"), parsed);
+        finishParse(1);
+        assertTrue(third.isDone());
+        assertEquals(VF.character(1), third.join());
+        assertEquals(4, state.getParsedVersion());
+    }
+
+    @Test
+    void supersededResultIsDropped() {
+        TextDocumentState state = build("a");
+        finishParse(0);
+        CompletableFuture<ITree> tree = state.update(2, "ab");
+        endQuietPeriod();
+        // a newer update comes in while the parse of "ab" is still running
+        assertSame(tree, state.update(3, "abc"));
+        finishParse(1);
+        assertFalse(tree.isDone());
+        assertEquals(1, state.getParsedVersion());
+
+        endQuietPeriod();
+        assertEquals(List.of("a", "ab", "abc"), parsed);
+        finishParse(2);
+        assertEquals(VF.character(2), tree.join());
+        assertEquals(3, state.getParsedVersion());
+        assertEquals(VF.character(2), state.getMostRecentTree());
+    }
+
+    @Test
+    void lateResultDoesNotOverwriteNewerTree() {
+        TextDocumentState state = build("a");
+        finishParse(0);
+        state.update(2, "ab");
+        endQuietPeriod();
+        CompletableFuture<ITree> tree = state.update(3, "abc");
+        endQuietPeriod();
+        // the newest parse finishes first
+        finishParse(2);
+        assertEquals(VF.character(2), tree.join());
+        finishParse(1);
+        assertEquals(3, state.getParsedVersion());
+        assertEquals(VF.character(2), state.getMostRecentTree());
+        assertSame(tree, state.getCurrentTreeAsync());
+    }
+}